@@ -3,6 +3,7 @@ package com.conney.arch.interfaces.http.files;
 import com.conney.arch.utils.ReflectUtils;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.core.AsyncContextImpl;
+import org.apache.coyote.AbstractProcessor;
 import org.apache.coyote.ActionHook;
 import org.apache.coyote.AsyncStateMachine;
 import org.apache.tomcat.util.net.NioChannel;
@@ -13,30 +14,55 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.lang.reflect.Field;
 
 public class AsyncContextWrapper implements AsyncContext
 {
     private static final Logger logger = LoggerFactory.getLogger(AsyncContextWrapper.class);
 
+    /**
+     * tomcat内部字段访问器(类加载时解析,不支持的tomcat版本在启动时失败)
+     */
+    private static final ReflectUtils.FieldAccessor REQUEST = ReflectUtils.accessor(AsyncContextImpl.class, "request");
+
+    private static final ReflectUtils.FieldAccessor HOOK = ReflectUtils.accessor(org.apache.coyote.Request.class, "hook");
+
+    private static final ReflectUtils.FieldAccessor ASYNC_STATE_MACHINE = ReflectUtils.accessor(AbstractProcessor.class, "asyncStateMachine");
+
+    private static final ReflectUtils.FieldAccessor SOCKET_WRAPPER = ReflectUtils.accessor(AbstractProcessor.class, "socketWrapper");
+
     private final AsyncContextImpl asyncContext;
 
     private final AsyncStateMachine asyncStateMachine;
 
     private final SocketWrapperBase<?> socketWrapper;
 
-    private final Field lastAsyncStart;
-
     public AsyncContextWrapper(AsyncContext asyncContext)
     {
         this.asyncContext = (AsyncContextImpl) asyncContext;
-        Request res = (Request) ReflectUtils.forceGet(asyncContext, "request");
+        Request res = (Request) REQUEST.get(asyncContext);
         org.apache.coyote.Request coyoteRequest = res.getCoyoteRequest();
-        ActionHook hook = (ActionHook) ReflectUtils.forceGet(coyoteRequest, "hook");
-        this.asyncStateMachine = (AsyncStateMachine) ReflectUtils.forceGet(hook, "asyncStateMachine");
-        this.socketWrapper = (SocketWrapperBase) ReflectUtils.forceGet(hook, "socketWrapper");
-        this.lastAsyncStart = ReflectUtils.getDeclaredField(asyncStateMachine, "lastAsyncStart");
-        this.lastAsyncStart.setAccessible(true);
+        ActionHook hook = (ActionHook) HOOK.get(coyoteRequest);
+        this.asyncStateMachine = (AsyncStateMachine) ASYNC_STATE_MACHINE.get(hook);
+        this.socketWrapper = (SocketWrapperBase) SOCKET_WRAPPER.get(hook);
+    }
+
+    /**
+     * 不关联tomcat内部对象, 由子类实现异步请求的操作(非tomcat容器或测试)
+     */
+    protected AsyncContextWrapper()
+    {
+        this.asyncContext = null;
+        this.asyncStateMachine = null;
+        this.socketWrapper = null;
+    }
+
+    /**
+     * 检查当前tomcat版本是否支持
+     * 调用时触发类加载解析字段访问器, 不支持的tomcat版本抛出ExceptionInInitializerError(原因为IllegalStateException)
+     */
+    public static void verify()
+    {
+        logger.debug("tomcat internal accessors resolved [{}, {}, {}, {}]", REQUEST.getField(), HOOK.getField(), ASYNC_STATE_MACHINE.getField(), SOCKET_WRAPPER.getField());
     }
 
     @Override
@@ -147,16 +173,4 @@ public class AsyncContextWrapper implements AsyncContext
     {
         return asyncContext.getTimeout();
     }
-
-    public void resetTimeout()
-    {
-        try
-        {
-            lastAsyncStart.set(asyncStateMachine, System.currentTimeMillis());
-        }
-        catch (Exception e)
-        {
-            logger.error(e.getMessage(), e);
-        }
-    }
 }
@@ -0,0 +1,286 @@
+package com.conney.arch.interfaces.http.files;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 内存广播缓冲区(环形)
+ * 不缓存的文件从外网读取后写入环形缓冲区,跟随的请求按各自的位置从缓冲区读取,不经过磁盘
+ * 只有一个写入者, 写入前等待最慢的读取者(背压): 写入会覆盖读取者未读取的数据时等待读取,
+ * 最慢的读取者超过stallTimeout没有进展时不再等待, 其数据被覆盖, 读取时抛出异常由调用方终止
+ */
+public class BroadcastBuffer
+{
+    private final byte[] ring;
+
+    /**
+     * 最慢的读取者没有进展时写入等待的最长时间(毫秒)
+     */
+    private final long stallTimeout;
+
+    /**
+     * 已写入完成的位置(读取可见)
+     */
+    private volatile long written = 0;
+
+    /**
+     * 正在写入的结束位置(写入前先发布,读取完成后用于判断数据是否在读取过程中被覆盖)
+     */
+    private volatile long reserved = 0;
+
+    /**
+     * 写入期间持有写锁, 读取按乐观读校验复制期间是否有写入(校验带有读屏障, 复制的读取不会重排到校验之后)
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * 读取者
+     */
+    private final Set<Cursor> cursors = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 写入者等待读取中
+     */
+    private volatile boolean waiting = false;
+
+    public BroadcastBuffer(int capacity, long stallTimeout)
+    {
+        this.ring = new byte[capacity];
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * 注册读取者(写入者等待已注册的读取者)
+     *
+     * @param position 读取开始位置
+     * @return 读取者(结束时需要关闭)
+     */
+    public Cursor open(long position)
+    {
+        Cursor cursor = new Cursor(position);
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * 写入数据(单线程写入)
+     *
+     * @throws InterruptedIOException 等待读取时被中断
+     */
+    public void write(byte[] b, int off, int len) throws InterruptedIOException
+    {
+        long end = written + len;
+        await(end);
+        reserved = end;
+        long stamp = lock.writeLock();
+
+        if (len > ring.length)
+        {
+            off += len - ring.length;
+            len = ring.length;
+        }
+
+        long position = end - len;
+        int index = (int) (position % ring.length);
+        int first = Math.min(len, ring.length - index);
+        System.arraycopy(b, off, ring, index, first);
+        System.arraycopy(b, off + first, ring, 0, len - first);
+
+        written = end;
+        lock.unlockWrite(stamp);
+    }
+
+    /**
+     * 等待最慢的读取者读取到写入后仍在缓冲区中的位置
+     *
+     * @param end 本次写入的结束位置
+     */
+    private void await(long end) throws InterruptedIOException
+    {
+        long floor = end - ring.length;
+        long slowest = slowest();
+
+        if (slowest >= floor)
+        {
+            return;
+        }
+
+        long progress = slowest;
+        long since = System.currentTimeMillis();
+
+        synchronized (this)
+        {
+            waiting = true;
+
+            try
+            {
+                while ((slowest = slowest()) < floor)
+                {
+                    long now = System.currentTimeMillis();
+
+                    if (slowest != progress)
+                    {
+                        progress = slowest;
+                        since = now;
+                    }
+                    else if (now - since >= stallTimeout)
+                    {
+                        discard(floor);
+                        return;
+                    }
+
+                    wait(Math.max(1, since + stallTimeout - now));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("broadcast write interrupted");
+            }
+            finally
+            {
+                waiting = false;
+            }
+        }
+    }
+
+    /**
+     * 最慢的读取者的位置(没有读取者时为Long.MAX_VALUE, 已放弃等待的读取者不计算)
+     */
+    private long slowest()
+    {
+        long slowest = Long.MAX_VALUE;
+
+        for (Cursor cursor : cursors)
+        {
+            if (!cursor.discarded)
+            {
+                slowest = Math.min(slowest, cursor.position);
+            }
+        }
+
+        return slowest;
+    }
+
+    /**
+     * 放弃等待落后的读取者(之后的写入不再等待, 其读取因数据被覆盖而失败)
+     */
+    private void discard(long floor)
+    {
+        for (Cursor cursor : cursors)
+        {
+            if (cursor.position < floor)
+            {
+                cursor.discarded = true;
+            }
+        }
+    }
+
+    private void signal()
+    {
+        if (waiting)
+        {
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 从指定位置读取数据
+     *
+     * @param position 读取位置
+     * @return 读取的长度(没有新数据时为0)
+     * @throws IOException 读取位置的数据已被覆盖
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException
+    {
+        long stamp = lock.tryOptimisticRead();
+        long end = written;
+        checkAvailable(position);
+
+        int n = (int) Math.min(len, end - position);
+
+        if (n <= 0)
+        {
+            return 0;
+        }
+
+        int index = (int) (position % ring.length);
+        int first = Math.min(n, ring.length - index);
+        System.arraycopy(ring, index, b, off, first);
+        System.arraycopy(ring, 0, b, off + first, n - first);
+
+        // 复制期间有写入时检查读取的数据是否被覆盖
+        if (!lock.validate(stamp))
+        {
+            checkAvailable(position);
+        }
+
+        return n;
+    }
+
+    private void checkAvailable(long position) throws IOException
+    {
+        if (position < reserved - ring.length)
+        {
+            throw new IOException("broadcast data discarded [position=" + position + "\twritten=" + written + "]");
+        }
+    }
+
+    /**
+     * 缓冲区中最早可读取的位置
+     */
+    public long getStart()
+    {
+        return Math.max(0, reserved - ring.length);
+    }
+
+    public long getWritten()
+    {
+        return written;
+    }
+
+    public int getCapacity()
+    {
+        return ring.length;
+    }
+
+    /**
+     * 读取者: 记录已读取的位置, 写入者据此等待
+     */
+    public class Cursor
+    {
+        private volatile long position;
+
+        private volatile boolean discarded = false;
+
+        private Cursor(long position)
+        {
+            this.position = position;
+        }
+
+        /**
+         * 从指定位置读取数据并记录读取位置
+         *
+         * @see BroadcastBuffer#read(long, byte[], int, int)
+         */
+        public int read(long position, byte[] b, int off, int len) throws IOException
+        {
+            int n = BroadcastBuffer.this.read(position, b, off, len);
+            this.position = position + n;
+            signal();
+            return n;
+        }
+
+        public void close()
+        {
+            cursors.remove(this);
+            signal();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.conney.arch.interfaces.http.files;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定大小的ByteBuffer池
+ * 池中最多保留maxPooled个空闲缓冲区,超过时直接丢弃由GC回收
+ */
+public class BufferPool
+{
+    /**
+     * 缓冲区大小
+     */
+    private final int bufferSize;
+
+    /**
+     * 最多保留的空闲缓冲区数
+     */
+    private final int maxPooled;
+
+    /**
+     * 是否使用堆外内存
+     */
+    private final boolean direct;
+
+    /**
+     * 空闲缓冲区
+     */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 空闲缓冲区数
+     */
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * 获取缓冲区(已clear)
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+
+        if (buffer != null)
+        {
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * 归还缓冲区
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() != bufferSize)
+        {
+            return;
+        }
+
+        if (pooled.incrementAndGet() <= maxPooled)
+        {
+            buffers.offer(buffer);
+        }
+        else
+        {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public int getPooled()
+    {
+        return pooled.get();
+    }
+}
@@ -0,0 +1,373 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存准入策略
+ * 大部分长尾url只请求一次,全部持久化到本地会浪费磁盘带宽并淘汰有用的文件
+ * 请求频率: doorkeeper布隆过滤器记录第一次请求, 再次请求才计入count-min sketch, 估算频率达到准入次数后才持久化
+ * 计数达到采样数时所有计数减半并清空doorkeeper(老化), 使频率反映近期的请求
+ * 未准入的请求以直通方式返回(不保留本地文件), 按文件大小和Content-Type可配置直接准入或拒绝
+ */
+public class CacheAdmission
+{
+    /**
+     * 默认准入请求次数
+     */
+    public static final int DEFAULT_ADMISSION_FREQUENCY = 2;
+
+    /**
+     * 默认统计的url数(决定sketch和doorkeeper的大小)
+     */
+    public static final int DEFAULT_EXPECTED_SIZE = 1 << 16;
+
+    /**
+     * sketch的行数(hash函数个数)
+     */
+    private static final int DEPTH = 4;
+
+    /**
+     * 计数最大值(4bit)
+     */
+    private static final int MAX_COUNT = 15;
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /**
+     * 准入决定
+     */
+    public enum Decision
+    {
+        /**
+         * 准入,持久化到本地
+         */
+        ADMIT,
+
+        /**
+         * 请求频率不足
+         */
+        REJECT_FREQUENCY,
+
+        /**
+         * 文件大小不在准入范围
+         */
+        REJECT_SIZE,
+
+        /**
+         * Content-Type不准入
+         */
+        REJECT_CONTENT_TYPE;
+
+        public boolean isAdmitted()
+        {
+            return this == ADMIT;
+        }
+    }
+
+    /**
+     * 准入请求次数
+     */
+    private final int admissionFrequency;
+
+    /**
+     * sketch每行的计数个数(2的幂)
+     */
+    private final int width;
+
+    /**
+     * 计数(每个long存放16个4bit计数)
+     */
+    private final long[] table;
+
+    /**
+     * 第一次请求的记录
+     */
+    private final BitSet doorkeeper;
+
+    /**
+     * 达到此采样数时老化
+     */
+    private final int sampleSize;
+
+    /**
+     * 当前采样数
+     */
+    private int samples = 0;
+
+    /**
+     * 小于此大小直接准入(-1为不限)
+     */
+    private volatile long alwaysAdmitBelow = -1;
+
+    /**
+     * 大于此大小不准入(-1为不限)
+     */
+    private volatile long maxObjectSize = -1;
+
+    /**
+     * 直接准入的Content-Type前缀
+     */
+    private volatile List<String> admittedContentTypes = new ArrayList<>();
+
+    /**
+     * 不准入的Content-Type前缀
+     */
+    private volatile List<String> rejectedContentTypes = new ArrayList<>();
+
+    private final AtomicLong admitted = new AtomicLong(0);
+
+    private final AtomicLong rejectedFrequency = new AtomicLong(0);
+
+    private final AtomicLong rejectedSize = new AtomicLong(0);
+
+    private final AtomicLong rejectedContentType = new AtomicLong(0);
+
+    public CacheAdmission()
+    {
+        this(DEFAULT_ADMISSION_FREQUENCY, DEFAULT_EXPECTED_SIZE);
+    }
+
+    public CacheAdmission(int admissionFrequency, int expectedSize)
+    {
+        this.admissionFrequency = admissionFrequency;
+        this.width = Integer.highestOneBit(Math.max(expectedSize, 16) - 1) << 1;
+        this.table = new long[width * DEPTH / 16];
+        this.doorkeeper = new BitSet(width * 2);
+        this.sampleSize = width * 10;
+    }
+
+    /**
+     * 记录一次本地未命中的请求
+     *
+     * @param key 缓存key
+     */
+    public synchronized void record(Object key)
+    {
+        int hash = spread(key.hashCode());
+
+        if (++samples >= sampleSize)
+        {
+            reset();
+        }
+
+        int bit1 = (hash & (width * 2 - 1));
+        int bit2 = (rehash(hash, 0) & (width * 2 - 1));
+
+        if (!doorkeeper.get(bit1) || !doorkeeper.get(bit2))
+        {
+            doorkeeper.set(bit1);
+            doorkeeper.set(bit2);
+            return;
+        }
+
+        for (int i = 0; i < DEPTH; i++)
+        {
+            increment(i, indexOf(hash, i));
+        }
+    }
+
+    /**
+     * 估算请求频率(doorkeeper中存在计1次)
+     *
+     * @param key 缓存key
+     * @return 估算的请求次数
+     */
+    public synchronized int frequency(Object key)
+    {
+        int hash = spread(key.hashCode());
+
+        if (!doorkeeper.get(hash & (width * 2 - 1)) || !doorkeeper.get(rehash(hash, 0) & (width * 2 - 1)))
+        {
+            return 0;
+        }
+
+        int frequency = MAX_COUNT;
+
+        for (int i = 0; i < DEPTH; i++)
+        {
+            frequency = Math.min(frequency, count(i, indexOf(hash, i)));
+        }
+
+        return frequency + 1;
+    }
+
+    /**
+     * 判断外网下载的文件是否准入(持久化到本地)
+     *
+     * @param key         缓存key
+     * @param length      文件大小(-1为未知)
+     * @param contentType Content-Type
+     * @return 准入决定
+     */
+    public Decision admit(Object key, long length, String contentType)
+    {
+        Decision decision = decide(key, length, contentType);
+
+        switch (decision)
+        {
+            case ADMIT:
+                admitted.incrementAndGet();
+                break;
+            case REJECT_SIZE:
+                rejectedSize.incrementAndGet();
+                break;
+            case REJECT_CONTENT_TYPE:
+                rejectedContentType.incrementAndGet();
+                break;
+            default:
+                rejectedFrequency.incrementAndGet();
+        }
+
+        return decision;
+    }
+
+    private Decision decide(Object key, long length, String contentType)
+    {
+        if (maxObjectSize != -1 && length > maxObjectSize)
+        {
+            return Decision.REJECT_SIZE;
+        }
+
+        String type = StringUtils.isNotEmpty(contentType) ? contentType.toLowerCase(Locale.ROOT) : "";
+
+        if (matches(rejectedContentTypes, type))
+        {
+            return Decision.REJECT_CONTENT_TYPE;
+        }
+
+        if (matches(admittedContentTypes, type) || (alwaysAdmitBelow != -1 && length > -1 && length < alwaysAdmitBelow))
+        {
+            return Decision.ADMIT;
+        }
+
+        return frequency(key) >= admissionFrequency ? Decision.ADMIT : Decision.REJECT_FREQUENCY;
+    }
+
+    private static boolean matches(List<String> prefixes, String contentType)
+    {
+        for (String prefix : prefixes)
+        {
+            if (contentType.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void increment(int row, int index)
+    {
+        int slot = row * width + index;
+        int offset = (slot & 15) << 2;
+        long mask = 0xfL << offset;
+
+        if ((table[slot >>> 4] & mask) != mask)
+        {
+            table[slot >>> 4] += 1L << offset;
+        }
+    }
+
+    private int count(int row, int index)
+    {
+        int slot = row * width + index;
+        return (int) ((table[slot >>> 4] >>> ((slot & 15) << 2)) & 0xfL);
+    }
+
+    /**
+     * 老化: 所有计数减半, 清空doorkeeper
+     */
+    private void reset()
+    {
+        for (int i = 0; i < table.length; i++)
+        {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+
+        doorkeeper.clear();
+        samples = samples >>> 1;
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        return rehash(hash, row) & (width - 1);
+    }
+
+    private static int rehash(int hash, int row)
+    {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h;
+    }
+
+    private static int spread(int hash)
+    {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    public void setAlwaysAdmitBelow(long alwaysAdmitBelow)
+    {
+        this.alwaysAdmitBelow = alwaysAdmitBelow;
+    }
+
+    public void setMaxObjectSize(long maxObjectSize)
+    {
+        this.maxObjectSize = maxObjectSize;
+    }
+
+    public void setAdmittedContentTypes(Collection<String> admittedContentTypes)
+    {
+        this.admittedContentTypes = lowerCase(admittedContentTypes);
+    }
+
+    public void setRejectedContentTypes(Collection<String> rejectedContentTypes)
+    {
+        this.rejectedContentTypes = lowerCase(rejectedContentTypes);
+    }
+
+    private static List<String> lowerCase(Collection<String> values)
+    {
+        List<String> list = new ArrayList<>();
+
+        for (String value : values)
+        {
+            list.add(value.toLowerCase(Locale.ROOT));
+        }
+
+        return list;
+    }
+
+    public long getAdmitted()
+    {
+        return admitted.get();
+    }
+
+    public long getRejectedFrequency()
+    {
+        return rejectedFrequency.get();
+    }
+
+    public long getRejectedSize()
+    {
+        return rejectedSize.get();
+    }
+
+    public long getRejectedContentType()
+    {
+        return rejectedContentType.get();
+    }
+
+    public long getRejected()
+    {
+        return rejectedFrequency.get() + rejectedSize.get() + rejectedContentType.get();
+    }
+}
@@ -0,0 +1,147 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 缓存key规范化
+ * 签名url(如OSS的Expires,OSSAccessKeyId,Signature)每次请求都不同,直接以完整url为key时相同的文件无法合并下载也无法命中本地文件
+ * 规范化规则: 去掉忽略的参数, 其余参数按名称和值排序, scheme和host转小写, 去掉fragment
+ * 规范化后的key用于ShareDownload池,本地文件路径和元数据, 外网下载仍使用原始url
+ */
+public class CacheKeyCanonicalizer
+{
+    /**
+     * 默认忽略的参数(OSS签名url参数)
+     */
+    public static final Collection<String> DEFAULT_IGNORED_PARAMS = Collections.unmodifiableList(Arrays.asList("Expires", "OSSAccessKeyId", "Signature", "security-token"));
+
+    /**
+     * 参数分隔符
+     */
+    private static final char PARAM_SEPARATOR = '&';
+
+    /**
+     * 忽略的参数名(小写)
+     */
+    private final Set<String> ignoredParams = new TreeSet<>();
+
+    public CacheKeyCanonicalizer()
+    {
+        this(DEFAULT_IGNORED_PARAMS);
+    }
+
+    public CacheKeyCanonicalizer(Collection<String> ignoredParams)
+    {
+        for (String name : ignoredParams)
+        {
+            this.ignoredParams.add(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * 规范化uri
+     *
+     * @param uri 原始uri
+     * @return 规范化后的uri
+     */
+    public URI canonicalize(URI uri)
+    {
+        String query = canonicalizeQuery(uri.getRawQuery());
+        String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : null;
+        String authority = uri.getRawAuthority();
+
+        if (uri.getHost() != null)
+        {
+            authority = (uri.getRawUserInfo() != null ? uri.getRawUserInfo() + "@" : "") + uri.getHost().toLowerCase(Locale.ROOT) + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+        }
+
+        if (StringUtils.equals(query, uri.getRawQuery()) && StringUtils.equals(scheme, uri.getScheme()) && StringUtils.equals(authority, uri.getRawAuthority()) && uri.getRawFragment() == null)
+        {
+            return uri;
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        if (scheme != null)
+        {
+            sb.append(scheme).append(':');
+        }
+
+        if (authority != null)
+        {
+            sb.append("//").append(authority);
+        }
+
+        sb.append(uri.getRawPath() != null ? uri.getRawPath() : "");
+
+        if (StringUtils.isNotEmpty(query))
+        {
+            sb.append('?').append(query);
+        }
+
+        try
+        {
+            return new URI(sb.toString());
+        }
+        catch (URISyntaxException e)
+        {
+            return uri;
+        }
+    }
+
+    /**
+     * 去掉忽略的参数并排序
+     *
+     * @param query 原始query(未解码)
+     * @return 规范化后的query(没有参数时返回null)
+     */
+    private String canonicalizeQuery(String query)
+    {
+        if (StringUtils.isEmpty(query))
+        {
+            return query;
+        }
+
+        List<String> params = new ArrayList<>();
+        int start = 0;
+
+        while (start <= query.length())
+        {
+            int end = query.indexOf(PARAM_SEPARATOR, start);
+            end = end == -1 ? query.length() : end;
+
+            if (end > start)
+            {
+                String param = query.substring(start, end);
+                int index = param.indexOf('=');
+                String name = index != -1 ? param.substring(0, index) : param;
+
+                if (!ignoredParams.contains(name.toLowerCase(Locale.ROOT)))
+                {
+                    params.add(param);
+                }
+            }
+
+            start = end + 1;
+        }
+
+        if (params.isEmpty())
+        {
+            return null;
+        }
+
+        Collections.sort(params);
+        return StringUtils.join(params, PARAM_SEPARATOR);
+    }
+}
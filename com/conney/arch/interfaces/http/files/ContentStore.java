@@ -0,0 +1,183 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 按内容摘要(md5)存储的文件
+ * 内容相同的不同url(不同的路径或query)通过硬链接指向同一份数据, url到摘要的对应关系由元数据文件中的ETag记录
+ * 目录结构: {storeHome}/.cas/{md5前两位}/{md5}
+ */
+public class ContentStore
+{
+    private static final Logger logger = LoggerFactory.getLogger(ContentStore.class);
+
+    /**
+     * 内容存储目录名
+     */
+    private static final String CAS_DIR = ".cas";
+
+    /**
+     * md5格式(摘要来自外网的ETag, 未校验前不能直接作为路径使用)
+     */
+    private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+
+    /**
+     * 内容存储根目录
+     */
+    private final Path home;
+
+    public ContentStore(String storeHome)
+    {
+        this.home = Paths.get(storeHome, CAS_DIR).toAbsolutePath().normalize();
+    }
+
+    /**
+     * 获取摘要对应的内容文件
+     *
+     * @param md5 内容摘要
+     * @return 内容文件(不存在返回null)
+     */
+    public Path find(String md5)
+    {
+        if (!isMD5(md5))
+        {
+            return null;
+        }
+
+        Path blob = blob(md5);
+        return Files.exists(blob) ? blob : null;
+    }
+
+    /**
+     * 将文件链接到已存在的相同内容
+     *
+     * @param md5  内容摘要
+     * @param file 目标文件
+     * @return 是否链接成功(内容不存在或链接失败返回false)
+     */
+    public boolean link(String md5, Path file)
+    {
+        Path blob = find(md5);
+
+        if (blob == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            Path temp = Paths.get(file.toString() + FileAssist.TEMP_SUFFIX);
+            Files.deleteIfExists(temp);
+            Files.createLink(FileAssist.createParent(temp), blob);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (logger.isInfoEnabled())
+            {
+                logger.info("link content [md5={}\tfile={}]", md5, file);
+            }
+
+            return true;
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            logger.warn("link content error: {} [md5={}\tfile={}]", e.getMessage(), md5, file);
+            return false;
+        }
+    }
+
+    /**
+     * 登记已校验的文件内容,内容已存在时将文件替换为指向已有内容的链接
+     *
+     * @param md5  内容摘要
+     * @param file 已校验的文件
+     */
+    public void register(String md5, Path file)
+    {
+        if (!isMD5(md5))
+        {
+            return;
+        }
+
+        Path blob = blob(md5);
+
+        try
+        {
+            Files.createLink(FileAssist.createParent(blob), file);
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            link(md5, file);
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            logger.warn("register content error: {} [md5={}\tfile={}]", e.getMessage(), md5, file);
+        }
+    }
+
+    /**
+     * 清理已没有url引用的内容(硬链接数为1)
+     *
+     * @return 清理的文件数
+     */
+    public int purge()
+    {
+        if (!Files.exists(home))
+        {
+            return 0;
+        }
+
+        int count = 0;
+
+        try (Stream<Path> paths = Files.walk(home))
+        {
+            for (Path path : (Iterable<Path>) paths::iterator)
+            {
+                if (Files.isRegularFile(path) && ((Number) Files.getAttribute(path, "unix:nlink")).intValue() <= 1)
+                {
+                    if (FileAssist.deleteFile(path))
+                    {
+                        count++;
+                    }
+                }
+            }
+        }
+        catch (IOException | UnsupportedOperationException | IllegalArgumentException e)
+        {
+            logger.warn("purge content error: {} [home={}]", e.getMessage(), home);
+        }
+
+        return count;
+    }
+
+    /**
+     * 摘要对应的内容文件(不在内容存储目录下时抛出异常)
+     */
+    private Path blob(String md5)
+    {
+        String key = md5.toLowerCase();
+        Path blob = home.resolve(key.substring(0, 2)).resolve(key).normalize();
+
+        if (!blob.startsWith(home))
+        {
+            throw new IllegalArgumentException("content path outside store [md5=" + md5 + "]");
+        }
+
+        return blob;
+    }
+
+    private boolean isMD5(String md5)
+    {
+        return StringUtils.isNotEmpty(md5) && MD5_PATTERN.matcher(md5).matches();
+    }
+}
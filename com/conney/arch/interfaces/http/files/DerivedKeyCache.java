@@ -0,0 +1,104 @@
+package com.conney.arch.interfaces.http.files;
+
+import java.io.File;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * url派生数据(URI, 缓存key, 相对路径, 本地文件)的缓存
+ * 直接映射(按url的hash取槽位, 冲突时覆盖), 命中时不加锁也不分配对象, 同一url的请求不再重复解析uri和计算md5
+ */
+public class DerivedKeyCache
+{
+    /**
+     * 默认槽位数(2的幂)
+     */
+    public static final int DEFAULT_CAPACITY = 1024 * 16;
+
+    private final AtomicReferenceArray<Entry> slots;
+
+    private final int mask;
+
+    public DerivedKeyCache()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 槽位数(向上取整为2的幂)
+     */
+    public DerivedKeyCache(int capacity)
+    {
+        int size = capacity > 1 ? Integer.highestOneBit(capacity - 1) << 1 : 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * 获取url的派生数据
+     *
+     * @param url           url
+     * @param storeHome     文件存放根目录
+     * @param type          ShareDownload类型(子类的文件名规则可能不同)
+     * @param canonicalizer 缓存key规范化(变更后重新计算)
+     * @return 派生数据(不存在时返回null)
+     */
+    public Entry get(String url, String storeHome, Class<?> type, CacheKeyCanonicalizer canonicalizer)
+    {
+        Entry entry = slots.get(index(url));
+        return entry != null && entry.matches(url, storeHome, type, canonicalizer) ? entry : null;
+    }
+
+    public void put(Entry entry)
+    {
+        slots.set(index(entry.url), entry);
+    }
+
+    private int index(String url)
+    {
+        int h = url.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * url的派生数据
+     */
+    public static class Entry
+    {
+        final String url;
+
+        final String storeHome;
+
+        final Class<?> type;
+
+        final CacheKeyCanonicalizer canonicalizer;
+
+        final URI uri;
+
+        final URI key;
+
+        final String relativePath;
+
+        final boolean nonRaw;
+
+        final File file;
+
+        public Entry(String url, String storeHome, Class<?> type, CacheKeyCanonicalizer canonicalizer, URI uri, URI key, String relativePath, boolean nonRaw, File file)
+        {
+            this.url = url;
+            this.storeHome = storeHome;
+            this.type = type;
+            this.canonicalizer = canonicalizer;
+            this.uri = uri;
+            this.key = key;
+            this.relativePath = relativePath;
+            this.nonRaw = nonRaw;
+            this.file = file;
+        }
+
+        boolean matches(String url, String storeHome, Class<?> type, CacheKeyCanonicalizer canonicalizer)
+        {
+            return this.type == type && this.canonicalizer == canonicalizer && this.url.equals(url) && this.storeHome.equals(storeHome);
+        }
+    }
+}
@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -93,6 +95,23 @@ public final class FileAssist
         }
     }
 
+    /**
+     * 创建文件所在目录(目录不存在时)
+     *
+     * @param path 文件路径
+     * @return 文件路径
+     * @throws IOException
+     */
+    public static Path createParent(Path path) throws IOException
+    {
+        if (!Files.exists(path.getParent()))
+        {
+            Files.createDirectories(path.getParent());
+        }
+
+        return path;
+    }
+
     /**
      * 创建临时文件(支持目录不存在)
      *
@@ -150,6 +169,20 @@ public final class FileAssist
         FileCopyUtils.copy(source, target);
     }
 
+    /**
+     * 复制文件并替换目标文件
+     * 先复制到临时文件再替换目标文件的目录项,不会改写目标文件原有的数据(目标文件为硬链接时不影响其他链接)
+     *
+     * @param source 源文件
+     * @param target 目标文件
+     */
+    public static void replace(File source, File target) throws IOException
+    {
+        Path temp = createParent(Paths.get(target.getPath() + TEMP_SUFFIX));
+        FileCopyUtils.copy(source, temp.toFile());
+        Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     /**
      * 文件重命名
      *
@@ -15,13 +15,20 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 文件的元数据类
+ * 下载中为可变的header map; 下载完成放入缓存时转换为紧凑的不可变形式(compact):
+ * 只保留返回到客户端的header(名称使用常量字符串, 常见值复用)和新鲜度计算需要的header, 文件大小, md5和Last-Modified解析为字段
  */
 public class FileMetadata
 {
@@ -57,15 +64,112 @@ public class FileMetadata
      */
     public static final String ETAG_HEADER_NAME = "ETag";
 
+    /**
+     * Content-Type
+     */
+    public static final String CONTENT_TYPE_HEADER_NAME = "Content-Type";
+
+    /**
+     * Cache-Control
+     */
+    public static final String CACHE_CONTROL_HEADER_NAME = "Cache-Control";
+
+    /**
+     * Expires
+     */
+    public static final String EXPIRES_HEADER_NAME = "Expires";
+
+    /**
+     * Last-Modified
+     */
+    public static final String LAST_MODIFIED_HEADER_NAME = "Last-Modified";
+
+    /**
+     * Date
+     */
+    public static final String DATE_HEADER_NAME = "Date";
+
+    /**
+     * Age
+     */
+    public static final String AGE_HEADER_NAME = "Age";
+
+    /**
+     * 只有Last-Modified时按(Date - Last-Modified)的10%估算新鲜期, 最多1天
+     */
+    private static final long HEURISTIC_FRESHNESS_MAX = 1000 * 60 * 60 * 24;
+
+    /**
+     * 默认返回到客户端的header(其他header只保存在元数据文件中)
+     */
+    public static final String[] DEFAULT_REPLAY_HEADER_NAMES = {CONTENT_TYPE_HEADER_NAME, CONTENT_LENGTH_HEADER_NAME, CONTENT_DISPOSITION_HEADER_NAME, "Content-Encoding", "Content-Language", "Content-MD5", ETAG_HEADER_NAME, LAST_MODIFIED_HEADER_NAME, CACHE_CONTROL_HEADER_NAME, EXPIRES_HEADER_NAME, "Accept-Ranges"};
+
+    /**
+     * 不论是否返回到客户端, 紧凑形式中都保留的header(校验器和新鲜度信息, 304, If-Range和新鲜度计算使用)
+     */
+    private static final String[] RETAINED_HEADER_NAMES = {ETAG_HEADER_NAME, LAST_MODIFIED_HEADER_NAME, CACHE_CONTROL_HEADER_NAME, EXPIRES_HEADER_NAME, AGE_HEADER_NAME, DATE_HEADER_NAME};
+
+    /**
+     * 取值种类少的header, 紧凑形式中相同的值共用一个字符串
+     */
+    private static final String[] SHARED_VALUE_HEADER_NAMES = {CONTENT_TYPE_HEADER_NAME, "Content-Encoding", "Content-Language", CACHE_CONTROL_HEADER_NAME, "Accept-Ranges"};
+
+    /**
+     * 共用值的最大数量(超过后不再共用)
+     */
+    private static final int SHARED_VALUES_CAPACITY = 1024 * 4;
+
+    private static final Map<String, String> sharedValues = new ConcurrentHashMap<>();
+
+    /**
+     * 返回到客户端的header
+     */
+    private static volatile String[] replayHeaderNames = DEFAULT_REPLAY_HEADER_NAMES;
+
+    /**
+     * 304返回报文中不更新到元数据的header(描述报文本身而不是文件)
+     */
+    private static final String[] NOT_MODIFIED_SKIP_HEADER_NAMES = {CONTENT_LENGTH_HEADER_NAME, CONTENT_RANGE_HEADER_NAME, "Transfer-Encoding", "Connection", "Keep-Alive"};
+
+    /**
+     * 一个请求最多支持的Range数(超过时忽略Range返回整个文件)
+     */
+    public static final int MAX_RANGES = 16;
+
+    /**
+     * 后缀Range(如bytes=-500)的起始位置标记
+     */
+    public static final long SUFFIX_RANGE_START = -2;
+
+    /**
+     * 按Range从外网获取时需要透传到客户端的header
+     */
+    private static final String[] RANGE_RESPONSE_HEADER_NAMES = {CONTENT_LENGTH_HEADER_NAME, CONTENT_RANGE_HEADER_NAME, "Content-Type", "Accept-Ranges", "Last-Modified", ETAG_HEADER_NAME};
+
     /**
      * 文件所在路径
      */
     private Path path;
 
     /**
-     * header信息数据
+     * header信息数据(紧凑形式为null)
      */
-    protected Map<String, String> headers = new HashMap<>();
+    protected Map<String, String> headers;
+
+    /**
+     * 紧凑形式: 文件大小
+     */
+    private long contentLength;
+
+    /**
+     * 紧凑形式: md5(ETag)
+     */
+    private String md5;
+
+    /**
+     * 紧凑形式: Last-Modified(毫秒)
+     */
+    private long lastModified;
 
     /**
      * 创建时间
@@ -73,75 +177,360 @@ public class FileMetadata
     private long createTime = 0;
 
     /**
-     * 下载所用时间
+     * 下载所用时间(外网下载开始到结束; 读取和写入并行, 不再减去写入时间, 各阶段用时见下面的阶段计时)
      */
     private long downloadTime = 0;
 
     /**
-     *　写入本地时间
+     * 写入阶段: 写入本地文件的时间(与外网读取重叠)
      */
     private long writeLocalTime = 0;
 
+    /**
+     * 读取阶段: 外网读取时间
+     */
+    private long readSourceTime = 0;
+
+    /**
+     * 写入阶段: 等待外网数据的时间
+     */
+    private long queueWaitTime = 0;
+
+    /**
+     * 写入阶段: fsync时间
+     */
+    private long syncTime = 0;
+
+    /**
+     * 校验时间(元数据文件的修改时间, 下载完成或外网返回304时写入元数据刷新)
+     */
+    private long validatedTime = 0;
+
+    /**
+     * 预先生成的返回header(headers变更时清空, 下次writeResponse时重新生成, 之后所有请求共用)
+     * 紧凑形式中为header的唯一存储
+     */
+    private volatile HeaderBlock headerBlock;
+
     public FileMetadata(Path path)
     {
         this.path = path;
+        this.headers = new HashMap<>();
     }
 
-    public Integer getContentLength()
+    private FileMetadata(Path path, HeaderBlock headerBlock)
     {
-        return parseInt(headers.get(CONTENT_LENGTH_HEADER_NAME));
+        this.path = path;
+        this.headerBlock = headerBlock;
+    }
+
+    /**
+     * 复制为可变的元数据(缓存中的元数据只读, 更新前先复制)
+     *
+     * @return 元数据副本
+     */
+    public FileMetadata copy()
+    {
+        FileMetadata copy = new FileMetadata(path);
+
+        if (headers != null)
+        {
+            copy.headers.putAll(headers);
+        }
+        else
+        {
+            headerBlock.copyTo(copy.headers);
+        }
+
+        copy.validatedTime = validatedTime;
+        return copy;
+    }
+
+    /**
+     * 转换为紧凑的不可变形式(下载完成或从元数据文件读取后放入缓存时使用)
+     *
+     * @return 紧凑形式的元数据(已是紧凑形式时返回自身)
+     */
+    public FileMetadata compact()
+    {
+        if (headers == null)
+        {
+            return this;
+        }
+
+        FileMetadata compact = new FileMetadata(path, headerBlock());
+        compact.contentLength = getContentLength();
+        compact.md5 = getMd5();
+        compact.lastModified = getLastModified();
+        compact.validatedTime = validatedTime;
+        compact.createTime = createTime;
+        return compact;
+    }
+
+    /**
+     * 是否紧凑的不可变形式
+     */
+    public boolean isCompact()
+    {
+        return headers == null;
+    }
+
+    public long getContentLength()
+    {
+        return headers != null ? parseLong(headers.get(CONTENT_LENGTH_HEADER_NAME)) : contentLength;
     }
 
     public String getMd5()
     {
-        return headers.get(ETAG_HEADER_NAME);
+        return headers != null ? headers.get(ETAG_HEADER_NAME) : md5;
     }
 
-    public Range getRange(HttpResponse response)
+    /**
+     * 解析外网返回的Content-Range(bytes start-end/length)
+     *
+     * @param response 外网返回报文
+     * @return Range(没有或格式错误返回null)
+     */
+    public static Range getRange(HttpResponse response)
     {
         Header header;
         if ((header = response.getFirstHeader(CONTENT_RANGE_HEADER_NAME)) != null)
         {
-            String value = header.getValue().trim();
-            if (value.startsWith("bytes"))
+            String value = header.getValue();
+            int i = skipSpaces(value, 0);
+
+            if (value.startsWith("bytes", i))
             {
-                char ch = value.charAt(5);
-                value = value.substring((ch == ' ' || ch == '=') ? 6 : 5);
-                String[] array = value.split("-|/");
+                i += 5;
+                i = i < value.length() && (value.charAt(i) == ' ' || value.charAt(i) == '=') ? i + 1 : i;
+                int dash = value.indexOf('-', i);
+                int slash = value.indexOf('/', i);
+
+                if (dash == -1)
+                {
+                    return null;
+                }
+
                 Range range = new Range();
-                range.start = array.length > 0 ? parseLong(array[0]) : -1;
-                range.end = array.length > 1 ? parseLong(array[1]) : -1;
-                range.length = array.length > 2 ? parseInt(array[2]) : -1;
+                range.start = parseDigits(value, i, dash);
+                range.end = parseDigits(value, dash + 1, slash != -1 ? slash : value.length());
+                range.length = slash != -1 ? parseDigits(value, slash + 1, value.length()) : -1;
                 return range.validate() ? range : null;
             }
         }
         return null;
     }
 
+    /**
+     * 解析请求的单个Range(If-Range不匹配时忽略Range)
+     *
+     * @param request 请求数据对象
+     * @return Range(没有Range, 多个Range或If-Range不匹配时返回null)
+     */
     public Range getRange(HttpServletRequest request)
     {
-        String value;
-        if ((value = request.getHeader(RANGE_HEADER_NAME)) != null)
+        return matchesIfRange(request) ? getRange(request, getContentLength()) : null;
+    }
+
+    /**
+     * 解析请求的所有Range(If-Range不匹配时忽略Range)
+     *
+     * @param request 请求数据对象
+     * @return Range列表(没有Range或If-Range不匹配时返回null)
+     */
+    public List<Range> getRanges(HttpServletRequest request)
+    {
+        return matchesIfRange(request) ? getRanges(request, getContentLength()) : null;
+    }
+
+    /**
+     * 按指定的文件长度解析请求的单个Range
+     *
+     * @param request 请求数据对象
+     * @param length  文件长度
+     * @return Range(没有Range, 多个Range或不满足时返回null)
+     */
+    public static Range getRange(HttpServletRequest request, long length)
+    {
+        List<Range> ranges = getRanges(request, length);
+        return ranges != null && ranges.size() == 1 ? ranges.get(0) : null;
+    }
+
+    /**
+     * If-Range是否与当前文件匹配(没有If-Range时匹配)
+     * ETag按强比较, 日期与Last-Modified相等时匹配
+     *
+     * @param request 请求数据对象
+     * @return 是否匹配
+     */
+    public boolean matchesIfRange(HttpServletRequest request)
+    {
+        String value = request.getHeader("If-Range");
+
+        if (value == null || (value = value.trim()).isEmpty())
+        {
+            return true;
+        }
+
+        if (value.startsWith("\"") || value.startsWith("W/"))
+        {
+            String etag = getMd5();
+            return !value.startsWith("W/") && StringUtils.isNotEmpty(etag) && value.replace("\"", "").equals(etag);
+        }
+
+        long date = parseDate(value);
+        return date > 0 && date == getLastModified();
+    }
+
+    /**
+     * 按指定的文件长度解析请求的所有Range(bytes=0-99,200-,-500)
+     *
+     * @param request 请求数据对象
+     * @param length  文件长度
+     * @return 没有Range, 格式错误或Range数超过MAX_RANGES时返回null; 全部超出文件长度时返回空列表
+     */
+    public static List<Range> getRanges(HttpServletRequest request, long length)
+    {
+        String value = request.getHeader(RANGE_HEADER_NAME);
+        int i;
+
+        if (value == null || !isBytesUnit(value, i = skipSpaces(value, 0)))
         {
-            value = value.trim();
-            if (value.startsWith("bytes"))
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<>(2);
+        int count = 0;
+
+        for (i += 6; ; i++)
+        {
+            int comma = value.indexOf(',', i);
+            int end = comma != -1 ? comma : value.length();
+            int dash = value.indexOf('-', i);
+
+            if (dash == -1 || dash >= end || ++count > MAX_RANGES)
+            {
+                return null;
+            }
+
+            Range range = new Range();
+            range.length = length;
+
+            if (skipSpaces(value, i) == dash)
+            {
+                long suffix = parseDigits(value, dash + 1, end);
+
+                if (suffix < 0)
+                {
+                    return null;
+                }
+
+                range.start = Math.max(0, length - suffix);
+                range.end = suffix > 0 ? length - 1 : -1;
+            }
+            else
             {
-                char ch = value.charAt(5);
-                value = value.substring((ch == ' ' || ch == '=') ? 6 : 5);
-                int index = value.indexOf("-");
-                if (index != -1)
+                range.start = parseDigits(value, i, dash);
+                range.end = skipSpaces(value, dash + 1) >= end ? length - 1 : parseDigits(value, dash + 1, end);
+
+                if (range.start < 0 || range.end < range.start)
                 {
-                    int length = getContentLength();
-                    FileMetadata.Range range = new FileMetadata.Range();
-                    range.start = parseLong(value.substring(0, index));
-                    range.end = parseLong(value.substring(index + 1), getContentLength());
-                    range.end = range.end == -1 ? length : range.end;
-                    range.length = length;
-                    return range.validate() ? range : null;
+                    return null;
                 }
             }
+
+            if (range.validate())
+            {
+                ranges.add(range);
+            }
+
+            if (comma == -1)
+            {
+                return ranges;
+            }
+
+            i = comma;
         }
-        return null;
+    }
+
+    /**
+     * 获取请求Range的起始位置
+     *
+     * @param request 请求数据对象
+     * @return 起始位置(没有Range返回-1, 后缀Range返回SUFFIX_RANGE_START)
+     */
+    public static long getRangeStart(HttpServletRequest request)
+    {
+        String value = request.getHeader(RANGE_HEADER_NAME);
+        int i;
+
+        if (value == null || !isBytesUnit(value, i = skipSpaces(value, 0)))
+        {
+            return -1;
+        }
+
+        i = skipSpaces(value, i + 6);
+        int dash = value.indexOf('-', i);
+
+        if (dash == i)
+        {
+            return SUFFIX_RANGE_START;
+        }
+
+        return dash != -1 ? parseDigits(value, i, dash) : -1;
+    }
+
+    /**
+     * 从index开始是否为"bytes="或"bytes "
+     */
+    private static boolean isBytesUnit(String value, int index)
+    {
+        return value.startsWith("bytes", index) && value.length() > index + 5 && (value.charAt(index + 5) == '=' || value.charAt(index + 5) == ' ');
+    }
+
+    private static int skipSpaces(String value, int index)
+    {
+        while (index < value.length() && value.charAt(index) == ' ')
+        {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * 解析[from, to)范围内的非负整数(忽略前后空格), 不创建子字符串
+     *
+     * @return 为空或不是数字时返回-1
+     */
+    private static long parseDigits(String value, int from, int to)
+    {
+        from = skipSpaces(value, from);
+
+        while (to > from && value.charAt(to - 1) == ' ')
+        {
+            to--;
+        }
+
+        if (from >= to || to - from > 18)
+        {
+            return -1;
+        }
+
+        long result = 0;
+
+        for (int i = from; i < to; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+
+            result = result * 10 + (c - '0');
+        }
+
+        return result;
     }
 
     /**
@@ -158,6 +547,8 @@ public class FileMetadata
             {
                 addHeader(line);
             }
+
+            validatedTime = Files.getLastModifiedTime(path).toMillis();
         }
         catch (IOException e)
         {
@@ -176,12 +567,14 @@ public class FileMetadata
         try
         {
             writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
-            Set<Map.Entry<String, String>> entries = headers.entrySet();
+            Set<Map.Entry<String, String>> entries = (headers != null ? headers : headerBlock.copyTo(new HashMap<>())).entrySet();
 
             for (Map.Entry<String, String> entry : entries)
             {
                 writer.write(entry.getKey() + ":" + entry.getValue() + LINE_BREAK);
             }
+
+            validatedTime = System.currentTimeMillis();
         }
         catch (IOException e)
         {
@@ -195,19 +588,31 @@ public class FileMetadata
 
     private void addHeader(String line)
     {
+        checkMutable();
+
         if (StringUtils.isNotEmpty(line))
         {
             int index = line.indexOf(":");
             if (index > 1 && index < line.length())
             {
                 headers.put(line.substring(0, index), line.substring(index + 1));
+                headerBlock = null;
             }
         }
     }
 
     public void putHeader(String name, String value)
     {
+        checkMutable();
         headers.put(name, value);
+        headerBlock = null;
+    }
+
+    public void removeHeader(String name)
+    {
+        checkMutable();
+        headers.remove(name);
+        headerBlock = null;
     }
 
     /**
@@ -216,28 +621,232 @@ public class FileMetadata
     public void readResponse(CloseableHttpResponse response, String filename)
     {
         Header[] allHeaders = response.getAllHeaders();
-        String name, value;
 
+        checkMutable();
         headers.put(CONTENT_DISPOSITION_HEADER_NAME, "inline;filename=" + filename);
 
         for (Header header : allHeaders)
         {
-            name = header.getName();
-            value = header.getValue();
+            putResponseHeader(header.getName(), header.getValue());
+        }
+    }
+
+    /**
+     * 外网返回304时按返回报文更新headers(Cache-Control, Expires, Date等), 文件内容相关的header保持不变
+     */
+    public void updateResponse(CloseableHttpResponse response)
+    {
+        checkMutable();
+
+        for (Header header : response.getAllHeaders())
+        {
+            String name = header.getName();
+            boolean skip = false;
+
+            for (String skipName : NOT_MODIFIED_SKIP_HEADER_NAMES)
+            {
+                skip |= skipName.equalsIgnoreCase(name);
+            }
+
+            if (!skip)
+            {
+                putResponseHeader(name, header.getValue());
+            }
+        }
+    }
+
+    private void putResponseHeader(String name, String value)
+    {
+        headerBlock = null;
+
+        if (name.equals(ETAG_HEADER_NAME) && StringUtils.isNotEmpty(value))
+        {
+            value = value.replace("\"", "");
+            if (isMD5(value))
+            {
+                headers.put(name, value);
+            }
+        }
+        else
+        {
+            headers.put(name, value);
+        }
+    }
+
+    /**
+     * 新鲜期(毫秒)
+     * 按顺序: Cache-Control(no-cache, no-store为0; s-maxage优先于max-age), Expires - Date, (Date - Last-Modified)的10%
+     *
+     * @param defaultLifetime 没有新鲜度信息时的新鲜期
+     * @return 新鲜期(-1为永久新鲜)
+     */
+    public long getFreshnessLifetime(long defaultLifetime)
+    {
+        String cacheControl = getHeaderIgnoreCase(CACHE_CONTROL_HEADER_NAME);
+
+        if (cacheControl != null)
+        {
+            if (getDirective(cacheControl, "no-cache") != null || getDirective(cacheControl, "no-store") != null)
+            {
+                return 0;
+            }
+
+            String maxAge = getDirective(cacheControl, "s-maxage");
+            maxAge = maxAge != null ? maxAge : getDirective(cacheControl, "max-age");
 
-            if (name.equals(ETAG_HEADER_NAME) && StringUtils.isNotEmpty(value))
+            if (maxAge != null)
             {
-                value = value.replace("\"", "");
-                if (isMD5(value))
+                return Math.max(0, parseLong(maxAge, 0)) * 1000;
+            }
+        }
+
+        String expires = getHeaderIgnoreCase(EXPIRES_HEADER_NAME);
+        long date = parseDate(getHeaderIgnoreCase(DATE_HEADER_NAME));
+        date = date > 0 ? date : validatedTime;
+
+        if (expires != null)
+        {
+            long time = parseDate(expires);
+            return time > 0 ? Math.max(0, time - date) : 0;
+        }
+
+        long lastModified = parseDate(getHeaderIgnoreCase(LAST_MODIFIED_HEADER_NAME));
+
+        if (lastModified > 0)
+        {
+            return Math.min(Math.max(0, date - lastModified) / 10, HEURISTIC_FRESHNESS_MAX);
+        }
+
+        return defaultLifetime;
+    }
+
+    /**
+     * 过期后可以继续返回并后台校验的时间(毫秒)
+     *
+     * @param defaultValue Cache-Control没有stale-while-revalidate时的值
+     * @return 时间
+     */
+    public long getStaleWhileRevalidate(long defaultValue)
+    {
+        String value = getDirective(getHeaderIgnoreCase(CACHE_CONTROL_HEADER_NAME), "stale-while-revalidate");
+        return value != null ? Math.max(0, parseLong(value, 0)) * 1000 : defaultValue;
+    }
+
+    /**
+     * 过期后必须先校验才能返回(no-cache, must-revalidate, proxy-revalidate)
+     */
+    public boolean isMustRevalidate()
+    {
+        String cacheControl = getHeaderIgnoreCase(CACHE_CONTROL_HEADER_NAME);
+        return getDirective(cacheControl, "no-cache") != null || getDirective(cacheControl, "must-revalidate") != null || getDirective(cacheControl, "proxy-revalidate") != null;
+    }
+
+    /**
+     * Last-Modified
+     *
+     * @return 毫秒时间, 没有或格式错误返回-1
+     */
+    public long getLastModified()
+    {
+        return headers != null ? parseDate(getHeaderIgnoreCase(LAST_MODIFIED_HEADER_NAME)) : lastModified;
+    }
+
+    /**
+     * 条件请求的If-None-Match(只保存了md5格式的ETag)
+     */
+    public String getIfNoneMatch()
+    {
+        String etag = getMd5();
+        return StringUtils.isNotEmpty(etag) ? "\"" + etag + "\"" : null;
+    }
+
+    /**
+     * 条件请求的If-Modified-Since
+     */
+    public String getIfModifiedSince()
+    {
+        String lastModified = getHeaderIgnoreCase(LAST_MODIFIED_HEADER_NAME);
+        return StringUtils.isNotEmpty(lastModified) ? lastModified.trim() : null;
+    }
+
+    private String getHeaderIgnoreCase(String name)
+    {
+        return headers != null ? getHeaderIgnoreCase(headers, name) : headerBlock.get(name);
+    }
+
+    private static String getHeaderIgnoreCase(Map<String, String> headers, String name)
+    {
+        String value = headers.get(name);
+
+        if (value == null)
+        {
+            for (Map.Entry<String, String> entry : headers.entrySet())
+            {
+                if (entry.getKey().equalsIgnoreCase(name))
                 {
-                    headers.put(name, value);
+                    return entry.getValue();
                 }
             }
-            else
+        }
+
+        return value;
+    }
+
+    private void checkMutable()
+    {
+        if (headers == null)
+        {
+            throw new UnsupportedOperationException("compact file metadata is immutable [path=" + path + "]");
+        }
+    }
+
+    /**
+     * 获取Cache-Control指令的值
+     *
+     * @return 指令不存在返回null, 没有值返回空字符串
+     */
+    private static String getDirective(String cacheControl, String name)
+    {
+        if (cacheControl == null)
+        {
+            return null;
+        }
+
+        for (String directive : cacheControl.split(","))
+        {
+            directive = directive.trim();
+            int index = directive.indexOf('=');
+            String directiveName = index != -1 ? directive.substring(0, index).trim() : directive;
+
+            if (directiveName.equalsIgnoreCase(name))
             {
-                headers.put(name, value);
+                return index != -1 ? directive.substring(index + 1).trim().replace("\"", "") : "";
             }
         }
+
+        return null;
+    }
+
+    /**
+     * 解析http日期(RFC 1123)
+     *
+     * @return 毫秒时间, 格式错误或为空返回-1
+     */
+    private static long parseDate(String value)
+    {
+        if (StringUtils.isEmpty(value))
+        {
+            return -1;
+        }
+
+        try
+        {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
     }
 
     /**
@@ -247,13 +856,47 @@ public class FileMetadata
      */
     public void writeResponse(HttpServletResponse response)
     {
-        headers.forEach((name, value) ->
+        HeaderBlock block = headerBlock();
+
+        for (int i = 0; i < block.replayCount; i++)
+        {
+            response.addHeader(block.names[i], block.values[i]);
+        }
+
+        setCors(response);
+    }
+
+    /**
+     * 返回header(可变形式按需生成, 紧凑形式即为header的存储)
+     */
+    HeaderBlock headerBlock()
+    {
+        HeaderBlock block = headerBlock;
+
+        if (block == null)
+        {
+            headerBlock = block = new HeaderBlock(headers);
+        }
+
+        return block;
+    }
+
+    /**
+     * 将外网Range返回报文的header透传到http返回报文
+     *
+     * @param source   外网返回报文
+     * @param response http返回报文
+     */
+    public static void copyHeaders(HttpResponse source, HttpServletResponse response)
+    {
+        for (String name : RANGE_RESPONSE_HEADER_NAMES)
         {
-            if (StringUtils.isNotEmpty(value))
+            Header header = source.getFirstHeader(name);
+            if (header != null && StringUtils.isNotEmpty(header.getValue()))
             {
-                response.addHeader(name, value);
+                response.setHeader(name, header.getValue());
             }
-        });
+        }
 
         setCors(response);
     }
@@ -266,7 +909,7 @@ public class FileMetadata
 
     public String getHeader(String name)
     {
-        return headers.get(name);
+        return headers != null ? headers.get(name) : headerBlock.get(name);
     }
 
     public static String getHeader(CloseableHttpResponse response, String name)
@@ -370,6 +1013,51 @@ public class FileMetadata
         this.writeLocalTime += writeLocalTime;
     }
 
+    public long getReadSourceTime()
+    {
+        return readSourceTime;
+    }
+
+    public void incrReadSourceTime(long readSourceTime)
+    {
+        this.readSourceTime += readSourceTime;
+    }
+
+    public long getQueueWaitTime()
+    {
+        return queueWaitTime;
+    }
+
+    public void incrQueueWaitTime(long queueWaitTime)
+    {
+        this.queueWaitTime += queueWaitTime;
+    }
+
+    public long getSyncTime()
+    {
+        return syncTime;
+    }
+
+    public long getValidatedTime()
+    {
+        return validatedTime;
+    }
+
+    public void incrSyncTime(long syncTime)
+    {
+        this.syncTime += syncTime;
+    }
+
+    /**
+     * 设置返回到客户端的header(默认DEFAULT_REPLAY_HEADER_NAMES), 需要在使用前设置
+     *
+     * @param names header名称
+     */
+    public static void setReplayHeaderNames(String... names)
+    {
+        replayHeaderNames = names.clone();
+    }
+
     protected static class Range
     {
         public long start = -1;
@@ -388,7 +1076,110 @@ public class FileMetadata
         @Override
         public String toString()
         {
-            return String.format("bytes %d-%d/%d", start, end > 0 && end < length ? end : length, length);
+            return new StringBuilder(48).append("bytes ").append(start).append('-').append(end >= 0 && end < length ? end : length - 1).append('/').append(length).toString();
+        }
+    }
+
+    /**
+     * header的数组形式(去掉空值)
+     * 名称使用常量字符串, 按replayHeaderNames的顺序排列返回到客户端的header, 之后是只保留不返回的header
+     */
+    static class HeaderBlock
+    {
+        final String[] names;
+
+        final String[] values;
+
+        /**
+         * 返回到客户端的header数
+         */
+        final int replayCount;
+
+        HeaderBlock(Map<String, String> headers)
+        {
+            String[] replayNames = replayHeaderNames;
+            List<String> names = new ArrayList<>(replayNames.length + RETAINED_HEADER_NAMES.length);
+            List<String> values = new ArrayList<>(replayNames.length + RETAINED_HEADER_NAMES.length);
+
+            add(headers, replayNames, names, values);
+            this.replayCount = names.size();
+            add(headers, RETAINED_HEADER_NAMES, names, values);
+
+            this.names = names.toArray(new String[0]);
+            this.values = values.toArray(new String[0]);
+        }
+
+        private static void add(Map<String, String> headers, String[] candidates, List<String> names, List<String> values)
+        {
+            for (String name : candidates)
+            {
+                String value = getHeaderIgnoreCase(headers, name);
+
+                if (StringUtils.isNotEmpty(value) && !containsIgnoreCase(names, name))
+                {
+                    names.add(name);
+                    values.add(share(name, value));
+                }
+            }
+        }
+
+        private static boolean containsIgnoreCase(List<String> names, String name)
+        {
+            for (String exists : names)
+            {
+                if (exists.equalsIgnoreCase(name))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * 取值种类少的header共用相同的值
+         */
+        private static String share(String name, String value)
+        {
+            for (String shared : SHARED_VALUE_HEADER_NAMES)
+            {
+                if (shared.equals(name))
+                {
+                    String exists = sharedValues.get(value);
+
+                    if (exists == null && sharedValues.size() < SHARED_VALUES_CAPACITY)
+                    {
+                        exists = sharedValues.putIfAbsent(value, value);
+                    }
+
+                    return exists != null ? exists : value;
+                }
+            }
+
+            return value;
+        }
+
+        String get(String name)
+        {
+            for (int i = 0; i < names.length; i++)
+            {
+                if (names[i].equalsIgnoreCase(name))
+                {
+                    return values[i];
+                }
+            }
+
+            return null;
+        }
+
+        Map<String, String> copyTo(Map<String, String> headers)
+        {
+            for (int i = 0; i < names.length; i++)
+            {
+                headers.put(names[i], values[i]);
+            }
+
+            return headers;
         }
     }
 }
@@ -3,30 +3,75 @@ package com.conney.arch.interfaces.http.files;
 import com.conney.arch.utils.LRULinkedHashMap;
 
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+/**
+ * 本地文件元数据缓存(缓存紧凑的不可变形式)
+ * 读取元数据文件在锁外进行, 同一文件的并发请求等待同一次读取, 不同文件的读取互不阻塞
+ */
 public class FileMetadataCache
 {
     private static final int DEFAULT_MAX_CACHE_CAPACITY = 2 << 16;
 
     private LRULinkedHashMap<Path, FileMetadata> caches = new LRULinkedHashMap<>(DEFAULT_MAX_CACHE_CAPACITY);
 
-    public synchronized FileMetadata get(FileMetadataOperator operator)
+    /**
+     * 正在读取的元数据文件
+     */
+    private final Map<Path, FutureTask<FileMetadata>> loading = new HashMap<>();
+
+    public FileMetadata get(FileMetadataOperator operator)
     {
         final Path path = operator.createMetaPath();
+        FutureTask<FileMetadata> task;
+        boolean owner = false;
 
-        return caches.computeIfAbsent(path, k ->
+        synchronized (this)
         {
-            try
+            FileMetadata fileMetadata = caches.get(path);
+
+            if (fileMetadata != null)
             {
-                FileMetadata fileMetadata = operator.newFileMetadata(path);
-                fileMetadata.read();
                 return fileMetadata;
             }
-            catch (FileMetadataNotExistsException e)
+
+            if ((task = loading.get(path)) == null)
             {
-                return null;
+                loading.put(path, task = new FutureTask<>(() -> load(operator, path)));
+                owner = true;
             }
-        });
+        }
+
+        if (!owner)
+        {
+            return await(task);
+        }
+
+        task.run();
+
+        synchronized (this)
+        {
+            boolean current = loading.remove(path, task);
+            // 已读取完成, 不会阻塞(读取失败时抛出异常)
+            FileMetadata fileMetadata = await(task);
+
+            // 读取期间add了新的元数据时不覆盖
+            if (!current)
+            {
+                FileMetadata added = caches.get(path);
+                return added != null ? added : fileMetadata;
+            }
+
+            if (fileMetadata != null)
+            {
+                caches.put(path, fileMetadata);
+            }
+
+            return fileMetadata;
+        }
     }
 
     public void add(FileMetadataOperator operator)
@@ -35,7 +80,51 @@ public class FileMetadataCache
 
         if (fileMetadata != null)
         {
-            caches.put(fileMetadata.getPath(), fileMetadata);
+            FileMetadata compact = fileMetadata.compact();
+
+            synchronized (this)
+            {
+                loading.remove(compact.getPath());
+                caches.put(compact.getPath(), compact);
+            }
+        }
+    }
+
+    private static FileMetadata load(FileMetadataOperator operator, Path path)
+    {
+        try
+        {
+            FileMetadata fileMetadata = operator.newFileMetadata(path);
+            fileMetadata.read();
+            return fileMetadata.compact();
+        }
+        catch (FileMetadataNotExistsException e)
+        {
+            return null;
+        }
+    }
+
+    private static FileMetadata await(FutureTask<FileMetadata> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IllegalStateException(cause);
         }
     }
 }
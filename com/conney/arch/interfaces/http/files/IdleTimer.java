@@ -0,0 +1,189 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 空闲超时检测(时间轮)
+ * 被检测对象只需在有进展时更新最后进展时间(O(1),无锁), 时间轮每个tick检查一个槽:
+ * 已超时的批量终止, 未超时的按最后进展时间重新放入对应的槽, 已结束的直接丢弃
+ * 时间轮的跨度不需要大于超时时间, 提前检查到的对象会重新放入
+ */
+public class IdleTimer
+{
+    private static final Logger logger = LoggerFactory.getLogger(IdleTimer.class);
+
+    /**
+     * 默认tick间隔(毫秒)
+     */
+    public static final long DEFAULT_TICK_DURATION = 1000;
+
+    /**
+     * 默认槽数
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * 被检测的对象
+     */
+    public interface Watched
+    {
+        /**
+         * 最后进展时间(毫秒)
+         */
+        long getLastProgress();
+
+        /**
+         * 空闲超时时间(毫秒)
+         */
+        long getIdleTimeout();
+
+        /**
+         * 是否仍需要检测
+         */
+        boolean isAlive();
+
+        /**
+         * 空闲超时
+         */
+        void expire();
+    }
+
+    private final long tickDuration;
+
+    private final Queue<Watched>[] wheel;
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread thread = new Thread(r, "idle-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 当前tick(只在ticker线程中修改)
+     */
+    private volatile long tick;
+
+    public IdleTimer()
+    {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public IdleTimer(long tickDuration, int wheelSize)
+    {
+        this.tickDuration = tickDuration;
+        this.wheel = new Queue[wheelSize];
+
+        for (int i = 0; i < wheelSize; i++)
+        {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+
+        this.tick = System.currentTimeMillis() / tickDuration;
+        this.ticker.scheduleAtFixedRate(this::tick, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开始检测
+     *
+     * @param watched 被检测的对象
+     */
+    public void watch(Watched watched)
+    {
+        schedule(watched, watched.getLastProgress() + watched.getIdleTimeout());
+    }
+
+    private void schedule(Watched watched, long deadline)
+    {
+        long target = Math.max(deadline / tickDuration, tick + 1);
+        target = Math.min(target, tick + wheel.length - 1);
+        wheel[(int) (target % wheel.length)].offer(watched);
+    }
+
+    private void tick()
+    {
+        try
+        {
+            long now = System.currentTimeMillis();
+            long current = now / tickDuration;
+
+            while (tick < current)
+            {
+                tick++;
+                expire(expired(wheel[(int) (tick % wheel.length)], now));
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.error("idle timer tick error: {}", e.getMessage(), e);
+        }
+    }
+
+    private List<Watched> expired(Queue<Watched> bucket, long now)
+    {
+        List<Watched> expired = new ArrayList<>();
+
+        for (int size = bucket.size(); size > 0; size--)
+        {
+            Watched watched = bucket.poll();
+
+            if (watched == null)
+            {
+                break;
+            }
+
+            if (!watched.isAlive())
+            {
+                continue;
+            }
+
+            long deadline = watched.getLastProgress() + watched.getIdleTimeout();
+
+            if (deadline <= now)
+            {
+                expired.add(watched);
+            }
+            else
+            {
+                schedule(watched, deadline);
+            }
+        }
+
+        return expired;
+    }
+
+    private void expire(List<Watched> expired)
+    {
+        if (!expired.isEmpty() && logger.isInfoEnabled())
+        {
+            logger.info("idle timeout [size={}]", expired.size());
+        }
+
+        for (Watched watched : expired)
+        {
+            try
+            {
+                watched.expire();
+            }
+            catch (Throwable e)
+            {
+                logger.warn("expire error: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    public void shutdown()
+    {
+        ticker.shutdownNow();
+    }
+}
@@ -0,0 +1,80 @@
+package com.conney.arch.interfaces.http.files;
+
+import javax.servlet.http.HttpServletResponse;
+import java.nio.file.Path;
+
+/**
+ * 前端代理内部重定向(X-Accel-Redirect / X-Sendfile)
+ * 只返回header(文件元数据和内部重定向地址), 由前端代理在同一个客户端连接上直接返回本地文件, 客户端不需要再次请求
+ */
+public class InternalRedirect
+{
+    /**
+     * nginx内部重定向header
+     */
+    public static final String ACCEL_REDIRECT_HEADER_NAME = "X-Accel-Redirect";
+
+    /**
+     * apache(mod_xsendfile), lighttpd内部发送文件header
+     */
+    public static final String SENDFILE_HEADER_NAME = "X-Sendfile";
+
+    private final String headerName;
+
+    /**
+     * 内部location前缀(为空时使用文件的绝对路径)
+     */
+    private final String location;
+
+    public InternalRedirect(String headerName, String location)
+    {
+        this.headerName = headerName;
+        this.location = location;
+    }
+
+    /**
+     * nginx: 返回 location + 相对路径, location需要配置为internal并指向文件存放根目录
+     *
+     * @param location 内部location前缀, 如/internal
+     */
+    public static InternalRedirect accel(String location)
+    {
+        return new InternalRedirect(ACCEL_REDIRECT_HEADER_NAME, location.endsWith("/") ? location.substring(0, location.length() - 1) : location);
+    }
+
+    /**
+     * X-Sendfile: 返回文件的绝对路径
+     */
+    public static InternalRedirect sendfile()
+    {
+        return new InternalRedirect(SENDFILE_HEADER_NAME, null);
+    }
+
+    /**
+     * 写入文件元数据header和内部重定向header(不返回内容)
+     *
+     * @param response     返回数据对象
+     * @param metadata     文件元数据
+     * @param file         本地文件
+     * @param relativePath 文件相对于存放根目录的路径
+     */
+    public void writeTo(HttpServletResponse response, FileMetadata metadata, Path file, String relativePath)
+    {
+        metadata.writeResponse(response);
+        response.setHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, "0");
+        response.setHeader(headerName, target(file, relativePath));
+    }
+
+    /**
+     * 内部重定向地址
+     */
+    public String target(Path file, String relativePath)
+    {
+        return location != null ? location + relativePath : file.toAbsolutePath().toString();
+    }
+
+    public String getHeaderName()
+    {
+        return headerName;
+    }
+}
@@ -0,0 +1,359 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.apache.http.HttpStatus.*;
+
+/**
+ * 本地文件直接在当前请求中返回(不再重定向)
+ * 支持HEAD, 单个和多个Range(multipart/byteranges), If-Range, If-None-Match和If-Modified-Since返回304
+ * 协议判断与内容来源无关: 先判断304, 再获取内容(内存缓存, 文件映射或磁盘文件), 按内容大小判断Range和416
+ * 磁盘文件在容器支持sendfile时单个Range和整个文件由容器零拷贝发送, 否则按FileChannel.transferTo发送
+ */
+public class LocalFileServer
+{
+    /**
+     * 本地文件的返回方式
+     */
+    public enum Mode
+    {
+        /**
+         * 重定向到本地文件地址(由前端web服务器返回)
+         */
+        REDIRECT,
+
+        /**
+         * 在当前请求中直接返回
+         */
+        IN_PROCESS,
+
+        /**
+         * 返回内部重定向header, 由前端代理返回文件(需要配置InternalRedirect)
+         */
+        OFFLOAD
+    }
+
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    /**
+     * 304返回报文中保留的header
+     */
+    private static final String[] NOT_MODIFIED_HEADER_NAMES = {FileMetadata.ETAG_HEADER_NAME, FileMetadata.LAST_MODIFIED_HEADER_NAME, FileMetadata.CACHE_CONTROL_HEADER_NAME, FileMetadata.EXPIRES_HEADER_NAME};
+
+    /**
+     * 本地文件的内容
+     */
+    public interface Content extends Closeable
+    {
+        /**
+         * 内容大小
+         */
+        long size() throws IOException;
+
+        /**
+         * 将[start, start + length)范围的数据写入输出流
+         *
+         * @param out    输出流
+         * @param start  起始位置
+         * @param length 长度
+         */
+        void writeTo(OutputStream out, long start, long length) throws IOException;
+
+        /**
+         * 可以由容器sendfile发送的文件(不支持时返回null)
+         */
+        default Path getPath()
+        {
+            return null;
+        }
+
+        /**
+         * 返回完成后释放内容
+         */
+        @Override
+        default void close() throws IOException
+        {
+        }
+    }
+
+    /**
+     * 内容来源(判断304之后才获取, 不存在时返回null)
+     */
+    public interface ContentSource
+    {
+        Content open() throws IOException;
+    }
+
+    /**
+     * 返回本地文件
+     *
+     * @param request  请求数据对象
+     * @param response 返回数据对象
+     * @param metadata 文件元数据
+     * @param path     本地文件
+     * @return 是否已返回(文件不存在时返回false)
+     */
+    public boolean serve(HttpServletRequest request, HttpServletResponse response, FileMetadata metadata, Path path) throws IOException
+    {
+        return serve(request, response, metadata, () -> open(path));
+    }
+
+    /**
+     * 返回本地文件: 先按元数据判断304, 再获取内容, 按内容大小判断Range(If-Range)和416, HEAD请求只返回header
+     *
+     * @param request  请求数据对象
+     * @param response 返回数据对象
+     * @param metadata 文件元数据
+     * @param source   内容来源
+     * @return 是否已返回(内容不存在时返回false, 此时还没有写入返回报文)
+     */
+    public boolean serve(HttpServletRequest request, HttpServletResponse response, FileMetadata metadata, ContentSource source) throws IOException
+    {
+        if (isNotModified(request, metadata))
+        {
+            notModified(response, metadata);
+            return true;
+        }
+
+        try (Content content = source.open())
+        {
+            if (content == null)
+            {
+                return false;
+            }
+
+            long size = content.size();
+            boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+            List<FileMetadata.Range> ranges = metadata.matchesIfRange(request) ? FileMetadata.getRanges(request, size) : null;
+
+            metadata.writeResponse(response);
+
+            if (ranges != null && ranges.isEmpty())
+            {
+                response.setHeader(FileMetadata.CONTENT_RANGE_HEADER_NAME, "bytes */" + size);
+                response.setHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, "0");
+                response.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return true;
+            }
+
+            if (ranges != null && ranges.size() > 1)
+            {
+                writeMultipart(response, metadata, content, ranges, head);
+                return true;
+            }
+
+            FileMetadata.Range range = ranges != null ? ranges.get(0) : null;
+            long start = range != null ? range.start : 0;
+            long length = range != null ? range.end - range.start + 1 : size;
+
+            if (range != null)
+            {
+                response.setStatus(SC_PARTIAL_CONTENT);
+                response.setHeader(FileMetadata.CONTENT_RANGE_HEADER_NAME, range.toString());
+            }
+
+            response.setHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, String.valueOf(length));
+
+            if (head || length == 0)
+            {
+                return true;
+            }
+
+            Path path = content.getPath();
+
+            if (path != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR)))
+            {
+                request.setAttribute(SENDFILE_FILENAME_ATTR, path.toAbsolutePath().toString());
+                request.setAttribute(SENDFILE_START_ATTR, start);
+                request.setAttribute(SENDFILE_END_ATTR, start + length);
+                return true;
+            }
+
+            content.writeTo(response.getOutputStream(), start, length);
+            return true;
+        }
+    }
+
+    /**
+     * 打开磁盘文件
+     *
+     * @param path 本地文件
+     * @return 文件内容(文件不存在时返回null)
+     */
+    public static Content open(Path path) throws IOException
+    {
+        try
+        {
+            return new FileContent(path, FileChannel.open(path, StandardOpenOption.READ));
+        }
+        catch (NoSuchFileException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * 按If-None-Match(优先)或If-Modified-Since判断客户端缓存是否仍有效
+     */
+    public static boolean isNotModified(HttpServletRequest request, FileMetadata metadata)
+    {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+
+        if (ifNoneMatch != null)
+        {
+            String etag = metadata.getMd5();
+
+            for (String tag : ifNoneMatch.split(","))
+            {
+                tag = tag.trim();
+
+                if (tag.equals("*") || (StringUtils.isNotEmpty(etag) && tag.replace("W/", "").replace("\"", "").equals(etag)))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        long lastModified = metadata.getLastModified();
+
+        if (lastModified > 0)
+        {
+            try
+            {
+                long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+                return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+            }
+            catch (IllegalArgumentException e)
+            {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private static void notModified(HttpServletResponse response, FileMetadata metadata)
+    {
+        response.setStatus(SC_NOT_MODIFIED);
+
+        for (String name : NOT_MODIFIED_HEADER_NAMES)
+        {
+            String value = metadata.getHeader(name);
+
+            if (StringUtils.isNotEmpty(value))
+            {
+                response.setHeader(name, value);
+            }
+        }
+
+        FileMetadata.setCors(response);
+    }
+
+    /**
+     * 多个Range按multipart/byteranges返回
+     */
+    private static void writeMultipart(HttpServletResponse response, FileMetadata metadata, Content content, List<FileMetadata.Range> ranges, boolean head) throws IOException
+    {
+        MultipartRanges multipart = new MultipartRanges(ranges, metadata.getHeader(FileMetadata.CONTENT_TYPE_HEADER_NAME));
+
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(FileMetadata.CONTENT_TYPE_HEADER_NAME, multipart.getContentType());
+        response.setHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, String.valueOf(multipart.getContentLength()));
+
+        if (head)
+        {
+            return;
+        }
+
+        ServletOutputStream out = response.getOutputStream();
+
+        for (int i = 0; i < multipart.size(); i++)
+        {
+            FileMetadata.Range range = multipart.get(i);
+            out.write(multipart.header(i));
+            content.writeTo(out, range.start, range.end - range.start + 1);
+        }
+
+        out.write(multipart.closing());
+    }
+
+    /**
+     * 磁盘文件
+     */
+    private static class FileContent implements Content
+    {
+        private final Path path;
+
+        private final FileChannel channel;
+
+        FileContent(Path path, FileChannel channel)
+        {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException
+        {
+            return channel.size();
+        }
+
+        @Override
+        public void writeTo(OutputStream out, long start, long length) throws IOException
+        {
+            transfer(channel, start, length, Channels.newChannel(out));
+        }
+
+        @Override
+        public Path getPath()
+        {
+            return path;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    private static void transfer(FileChannel channel, long start, long length, WritableByteChannel target) throws IOException
+    {
+        long position = start;
+        long end = start + length;
+
+        while (position < end)
+        {
+            long n = channel.transferTo(position, end - position, target);
+
+            if (n <= 0)
+            {
+                throw new IOException("unexpected end of file [position=" + position + "\tend=" + end + "]");
+            }
+
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.conney.arch.interfaces.http.files;
+
+import com.conney.arch.utils.LRULinkedHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载完成的热点文件内存映射
+ * 准入策略: 同一文件的请求次数达到阈值后才映射, 只访问一次的文件不占用映射大小
+ * 同一文件只映射一次,所有并发请求共享同一个MappedByteBuffer,按引用计数管理
+ * 空闲超时或超过映射总大小时移除映射,每个请求不再单独打开文件和read
+ * 数据从映射内存复制到返回报文的输出缓冲区(不是零拷贝, 需要零拷贝时使用LocalFileServer的sendfile)
+ */
+public class MappedFileCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileCache.class);
+
+    /**
+     * 默认映射总大小
+     */
+    public static final long DEFAULT_CAPACITY = 1024L * 1024 * 1024 * 4;
+
+    /**
+     * 默认空闲超时(毫秒)
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 1000 * 60;
+
+    /**
+     * 默认准入请求次数
+     */
+    public static final int DEFAULT_ADMISSION_FREQUENCY = 2;
+
+    /**
+     * 请求次数统计的最大文件数
+     */
+    private static final int FREQUENCY_CAPACITY = 2 << 14;
+
+    /**
+     * 单个映射段的最大大小(MappedByteBuffer最大只能映射2G)
+     */
+    private static final long SEGMENT_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * 映射总大小
+     */
+    private final long capacity;
+
+    /**
+     * 空闲超时
+     */
+    private final long idleTimeout;
+
+    /**
+     * 准入请求次数
+     */
+    private final int admissionFrequency;
+
+    /**
+     * 未映射文件的请求次数
+     */
+    private final LRULinkedHashMap<Path, Integer> frequencies = new LRULinkedHashMap<>(FREQUENCY_CAPACITY);
+
+    /**
+     * 已映射的文件
+     */
+    private final Map<Path, MappedFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * 已映射的总大小
+     */
+    private final AtomicLong mapped = new AtomicLong(0);
+
+    /**
+     * 空闲映射清理
+     */
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread thread = new Thread(r, "mapped-file-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MappedFileCache()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public MappedFileCache(long capacity, long idleTimeout)
+    {
+        this(capacity, idleTimeout, DEFAULT_ADMISSION_FREQUENCY);
+    }
+
+    public MappedFileCache(long capacity, long idleTimeout, int admissionFrequency)
+    {
+        this.capacity = capacity;
+        this.idleTimeout = idleTimeout;
+        this.admissionFrequency = admissionFrequency;
+        this.sweeper.scheduleWithFixedDelay(this::sweep, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取文件映射(引用计数加一),使用完后必须调用release
+     *
+     * @param file 文件
+     * @return 文件映射(请求次数未达到准入次数, 超过映射总大小或映射失败返回null)
+     */
+    public MappedFile acquire(Path file)
+    {
+        for (;;)
+        {
+            MappedFile mappedFile = files.get(file);
+
+            if (mappedFile == null)
+            {
+                if (!admit(file) || (mappedFile = map(file)) == null)
+                {
+                    return null;
+                }
+
+                MappedFile exists = files.putIfAbsent(file, mappedFile);
+
+                if (exists != null)
+                {
+                    mapped.addAndGet(-mappedFile.size);
+                    mappedFile = exists;
+                }
+            }
+
+            if (mappedFile.retain())
+            {
+                return mappedFile;
+            }
+
+            files.remove(file, mappedFile);
+        }
+    }
+
+    /**
+     * 记录未映射文件的请求次数
+     *
+     * @param file 文件
+     * @return 是否达到准入次数
+     */
+    private boolean admit(Path file)
+    {
+        synchronized (frequencies)
+        {
+            int frequency = frequencies.getOrDefault(file, 0) + 1;
+
+            if (frequency < admissionFrequency)
+            {
+                frequencies.put(file, frequency);
+                return false;
+            }
+
+            frequencies.remove(file);
+            return true;
+        }
+    }
+
+    public void release(MappedFile mappedFile)
+    {
+        if (mappedFile != null)
+        {
+            mappedFile.release();
+        }
+    }
+
+    private MappedFile map(Path file)
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+
+            if (mapped.addAndGet(size) > capacity)
+            {
+                mapped.addAndGet(-size);
+                return null;
+            }
+
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+            for (int i = 0; i < segments.length; i++)
+            {
+                long offset = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, size - offset));
+            }
+
+            return new MappedFile(segments, size);
+        }
+        catch (IOException e)
+        {
+            logger.warn("map file error: {} [file={}]", e.getMessage(), file);
+            return null;
+        }
+    }
+
+    /**
+     * 文件变更时移除映射(正在使用的请求继续使用旧的映射)
+     *
+     * @param file 文件
+     */
+    public void invalidate(Path file)
+    {
+        MappedFile mappedFile = files.remove(file);
+
+        if (mappedFile != null)
+        {
+            mappedFile.removed = true;
+            evict(mappedFile);
+        }
+    }
+
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<Path, MappedFile> entry : files.entrySet())
+        {
+            MappedFile mappedFile = entry.getValue();
+
+            if (mappedFile.refs.get() == 0 && now - mappedFile.lastAccess > idleTimeout && files.remove(entry.getKey(), mappedFile))
+            {
+                evict(mappedFile);
+            }
+        }
+    }
+
+    private void evict(MappedFile mappedFile)
+    {
+        if (mappedFile.evict())
+        {
+            mapped.addAndGet(-mappedFile.size);
+        }
+    }
+
+    public long getMapped()
+    {
+        return mapped.get();
+    }
+
+    public int getSize()
+    {
+        return files.size();
+    }
+
+    public void shutdown()
+    {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * 文件映射
+     * 引用计数为-1表示已移除,不能再获取
+     */
+    public class MappedFile implements LocalFileServer.Content
+    {
+        private final MappedByteBuffer[] segments;
+
+        private final long size;
+
+        private final AtomicInteger refs = new AtomicInteger(0);
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        /**
+         * 已从缓存中移除(最后一个请求释放时回收)
+         */
+        private volatile boolean removed = false;
+
+        MappedFile(MappedByteBuffer[] segments, long size)
+        {
+            this.segments = segments;
+            this.size = size;
+        }
+
+        boolean retain()
+        {
+            int n;
+            do
+            {
+                if ((n = refs.get()) < 0)
+                {
+                    return false;
+                }
+            }
+            while (!refs.compareAndSet(n, n + 1));
+
+            lastAccess = System.currentTimeMillis();
+            return true;
+        }
+
+        void release()
+        {
+            lastAccess = System.currentTimeMillis();
+
+            if (refs.decrementAndGet() == 0 && removed)
+            {
+                MappedFileCache.this.evict(this);
+            }
+        }
+
+        /**
+         * 没有请求使用时标记为已移除, 映射内存在MappedByteBuffer回收时释放
+         */
+        boolean evict()
+        {
+            return refs.compareAndSet(0, -1);
+        }
+
+        /**
+         * 将[start, start + length)范围的数据写入输出流
+         *
+         * @param out    输出流
+         * @param start  起始位置
+         * @param length 长度
+         */
+        @Override
+        public void writeTo(OutputStream out, long start, long length) throws IOException
+        {
+            WritableByteChannel channel = Channels.newChannel(out);
+            long position = start;
+            long end = start + length;
+
+            while (position < end)
+            {
+                int index = (int) (position / SEGMENT_SIZE);
+                int offset = (int) (position % SEGMENT_SIZE);
+                ByteBuffer slice = segments[index].duplicate();
+                slice.position(offset);
+                slice.limit((int) Math.min(slice.capacity(), offset + (end - position)));
+                position += slice.remaining();
+
+                while (slice.hasRemaining())
+                {
+                    channel.write(slice);
+                }
+            }
+        }
+
+        @Override
+        public long size()
+        {
+            return size;
+        }
+
+        /**
+         * 返回完成后释放引用
+         */
+        @Override
+        public void close()
+        {
+            release();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.conney.arch.interfaces.http.files;
+
+import com.conney.arch.utils.LRULinkedHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 小文件内存缓存
+ * 将下载完成的小文件放在内存中,命中时由LocalFileServer从内存返回(header按文件元数据生成),不再重定向到nginx读取磁盘
+ * 准入策略: 同一文件的请求次数达到阈值后才放入内存, 超过内存预算时按LRU淘汰
+ * 读取文件在锁外进行, 读取期间有文件失效(invalidate)时不放入缓存, 避免旧内容覆盖失效
+ */
+public class MemoryObjectCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(MemoryObjectCache.class);
+
+    /**
+     * 默认内存预算
+     */
+    public static final long DEFAULT_CAPACITY = 1024L * 1024 * 256;
+
+    /**
+     * 默认可缓存的最大文件大小
+     */
+    public static final int DEFAULT_MAX_OBJECT_SIZE = 1024 * 512;
+
+    /**
+     * 默认准入请求次数
+     */
+    public static final int DEFAULT_ADMISSION_FREQUENCY = 2;
+
+    /**
+     * 请求次数统计的最大文件数
+     */
+    private static final int FREQUENCY_CAPACITY = 2 << 14;
+
+    /**
+     * 写入返回报文时的分段大小(堆外内存需要复制到堆内)
+     */
+    private static final int WRITE_CHUNK_SIZE = 1024 * 16;
+
+    /**
+     * 内存预算(字节)
+     */
+    private final long capacity;
+
+    /**
+     * 可缓存的最大文件大小
+     */
+    private final int maxObjectSize;
+
+    /**
+     * 准入请求次数
+     */
+    private final int admissionFrequency;
+
+    /**
+     * 是否使用堆外内存
+     */
+    private final boolean direct;
+
+    /**
+     * 缓存的文件(按访问顺序)
+     */
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 未缓存文件的请求次数
+     */
+    private final LRULinkedHashMap<Path, Integer> frequencies = new LRULinkedHashMap<>(FREQUENCY_CAPACITY);
+
+    /**
+     * 已使用的内存
+     */
+    private long used = 0;
+
+    /**
+     * 失效次数(准入开始时记录, 放入缓存时不一致说明读取期间有文件失效)
+     */
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+    private final AtomicLong admissions = new AtomicLong(0);
+
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public MemoryObjectCache()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_OBJECT_SIZE, DEFAULT_ADMISSION_FREQUENCY, false);
+    }
+
+    public MemoryObjectCache(long capacity, int maxObjectSize, int admissionFrequency, boolean direct)
+    {
+        this.capacity = capacity;
+        this.maxObjectSize = maxObjectSize;
+        this.admissionFrequency = admissionFrequency;
+        this.direct = direct;
+    }
+
+    /**
+     * 获取缓存的文件,未缓存时记录请求次数,达到准入次数后读取文件放入内存
+     *
+     * @param file     文件
+     * @param metadata 文件元数据(准入时获取, 不存在时不准入)
+     * @return 缓存的文件(未缓存返回null)
+     */
+    public Entry get(Path file, Supplier<FileMetadata> metadata)
+    {
+        Entry entry;
+        long generation;
+
+        synchronized (this)
+        {
+            if ((entry = entries.get(file)) != null)
+            {
+                hits.incrementAndGet();
+                return entry;
+            }
+
+            misses.incrementAndGet();
+
+            int frequency = frequencies.getOrDefault(file, 0) + 1;
+
+            if (frequency < admissionFrequency)
+            {
+                frequencies.put(file, frequency);
+                return null;
+            }
+
+            frequencies.remove(file);
+            generation = this.generation;
+        }
+
+        return metadata.get() != null ? admit(file, generation) : null;
+    }
+
+    /**
+     * 读取文件放入内存
+     *
+     * @param file       文件
+     * @param generation 准入开始时的失效次数
+     * @return 缓存的文件(读取期间有文件失效时返回null, 由其他方式返回)
+     */
+    private Entry admit(Path file, long generation)
+    {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+
+            if (size > maxObjectSize || size > capacity)
+            {
+                return null;
+            }
+
+            ByteBuffer body = direct ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+
+            while (body.hasRemaining() && channel.read(body) != -1)
+            {
+            }
+
+            body.flip();
+            Entry entry = new Entry(body);
+
+            synchronized (this)
+            {
+                if (generation != this.generation)
+                {
+                    return null;
+                }
+
+                Entry old = entries.put(file, entry);
+                used += size - (old != null ? old.size() : 0);
+                evict();
+            }
+
+            admissions.incrementAndGet();
+            return entry;
+        }
+        catch (IOException e)
+        {
+            logger.warn("load memory object error: {} [file={}]", e.getMessage(), file);
+            return null;
+        }
+    }
+
+    private void evict()
+    {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (used > capacity && iterator.hasNext())
+        {
+            used -= iterator.next().size();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 文件变更时移除缓存
+     *
+     * @param file 文件
+     */
+    public synchronized void invalidate(Path file)
+    {
+        generation++;
+        Entry entry = entries.remove(file);
+
+        if (entry != null)
+        {
+            used -= entry.size();
+        }
+    }
+
+    public double getHitRatio()
+    {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total > 0 ? (double) hit / total : 0;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getAdmissions()
+    {
+        return admissions.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public synchronized long getUsed()
+    {
+        return used;
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * 缓存的文件内容
+     */
+    public static class Entry implements LocalFileServer.Content
+    {
+        private final ByteBuffer body;
+
+        Entry(ByteBuffer body)
+        {
+            this.body = body;
+        }
+
+        @Override
+        public void writeTo(OutputStream out, long start, long length) throws IOException
+        {
+            if (body.hasArray())
+            {
+                out.write(body.array(), body.arrayOffset() + (int) start, (int) length);
+                return;
+            }
+
+            ByteBuffer buffer = body.duplicate();
+            buffer.position((int) start);
+            buffer.limit((int) (start + length));
+            byte[] bytes = new byte[Math.min(WRITE_CHUNK_SIZE, buffer.remaining())];
+
+            while (buffer.hasRemaining())
+            {
+                int n = Math.min(bytes.length, buffer.remaining());
+                buffer.get(bytes, 0, n);
+                out.write(bytes, 0, n);
+            }
+        }
+
+        @Override
+        public long size()
+        {
+            return body.limit();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.conney.arch.interfaces.http.files;
+
+import com.conney.arch.utils.UUIDTool;
+import org.apache.commons.lang.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 多个Range的multipart/byteranges返回格式
+ * 预先生成每段的header和结束边界, 返回前即可得到准确的Content-Length
+ */
+public class MultipartRanges
+{
+    private static final String CRLF = "\r\n";
+
+    private final String boundary = UUIDTool.getUUID();
+
+    private final List<FileMetadata.Range> ranges;
+
+    private final byte[][] headers;
+
+    private final byte[] closing;
+
+    private final long contentLength;
+
+    /**
+     * @param ranges      Range列表
+     * @param contentType 文件的Content-Type(为空时每段不带Content-Type)
+     */
+    public MultipartRanges(List<FileMetadata.Range> ranges, String contentType)
+    {
+        this.ranges = ranges;
+        this.headers = new byte[ranges.size()][];
+        this.closing = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+
+        long length = closing.length;
+
+        for (int i = 0; i < ranges.size(); i++)
+        {
+            FileMetadata.Range range = ranges.get(i);
+            StringBuilder sb = new StringBuilder(128).append(CRLF).append("--").append(boundary).append(CRLF);
+
+            if (StringUtils.isNotEmpty(contentType))
+            {
+                sb.append(FileMetadata.CONTENT_TYPE_HEADER_NAME).append(": ").append(contentType).append(CRLF);
+            }
+
+            sb.append(FileMetadata.CONTENT_RANGE_HEADER_NAME).append(": ").append(range.toString()).append(CRLF).append(CRLF);
+            headers[i] = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+            length += headers[i].length + range.end - range.start + 1;
+        }
+
+        this.contentLength = length;
+    }
+
+    /**
+     * 返回报文的Content-Type
+     */
+    public String getContentType()
+    {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /**
+     * 返回报文的Content-Length
+     */
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    public int size()
+    {
+        return ranges.size();
+    }
+
+    public FileMetadata.Range get(int index)
+    {
+        return ranges.get(index);
+    }
+
+    /**
+     * 第index段的header(包含前面的边界)
+     */
+    public byte[] header(int index)
+    {
+        return headers[index];
+    }
+
+    /**
+     * 结束边界
+     */
+    public byte[] closing()
+    {
+        return closing;
+    }
+
+    /**
+     * 所有Range中最小的起始位置
+     */
+    public long getStart()
+    {
+        long start = Long.MAX_VALUE;
+
+        for (FileMetadata.Range range : ranges)
+        {
+            start = Math.min(start, range.start);
+        }
+
+        return start;
+    }
+}
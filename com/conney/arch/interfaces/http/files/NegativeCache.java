@@ -0,0 +1,156 @@
+package com.conney.arch.interfaces.http.files;
+
+import com.conney.arch.exceptions.DownloadException;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 外网错误返回的短时缓存(按缓存key)
+ * 404/410等客户端错误缓存较长时间, 5xx缓存较短时间, 过期前同一url的请求直接返回缓存的错误, 不再请求外网
+ */
+public class NegativeCache
+{
+    /**
+     * 默认客户端错误(4xx)缓存时间(毫秒)
+     */
+    public static final long DEFAULT_CLIENT_ERROR_TTL = 1000 * 60;
+
+    /**
+     * 默认服务端错误(5xx)缓存时间(毫秒)
+     */
+    public static final long DEFAULT_SERVER_ERROR_TTL = 1000 * 5;
+
+    /**
+     * 默认最大缓存数
+     */
+    public static final int DEFAULT_CAPACITY = 1024 * 64;
+
+    private final long clientErrorTtl;
+
+    private final long serverErrorTtl;
+
+    private final int capacity;
+
+    private final Map<URI, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    public NegativeCache()
+    {
+        this(DEFAULT_CLIENT_ERROR_TTL, DEFAULT_SERVER_ERROR_TTL, DEFAULT_CAPACITY);
+    }
+
+    public NegativeCache(long clientErrorTtl, long serverErrorTtl, int capacity)
+    {
+        this.clientErrorTtl = clientErrorTtl;
+        this.serverErrorTtl = serverErrorTtl;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 获取缓存的错误
+     *
+     * @param key 缓存key
+     * @return 缓存的错误(不存在或已过期返回null)
+     */
+    public DownloadException get(URI key)
+    {
+        Entry entry = entries.get(key);
+
+        if (entry == null)
+        {
+            return null;
+        }
+
+        if (entry.expireAt <= System.currentTimeMillis())
+        {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return new DownloadException(entry.message, entry.status);
+    }
+
+    /**
+     * 缓存外网返回的错误(只缓存4xx和5xx)
+     *
+     * @param key     缓存key
+     * @param status  http状态码
+     * @param message 错误信息
+     */
+    public void put(URI key, int status, String message)
+    {
+        long ttl = status >= 500 ? serverErrorTtl : status >= 400 ? clientErrorTtl : 0;
+
+        if (ttl <= 0)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (entries.size() >= capacity)
+        {
+            purge(now);
+        }
+
+        if (entries.size() < capacity)
+        {
+            entries.put(key, new Entry(status, message, now + ttl));
+        }
+    }
+
+    /**
+     * 外网恢复正常时移除
+     *
+     * @param key 缓存key
+     */
+    public void remove(URI key)
+    {
+        entries.remove(key);
+    }
+
+    private void purge(long now)
+    {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext())
+        {
+            if (iterator.next().expireAt <= now)
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public int getSize()
+    {
+        return entries.size();
+    }
+
+    private static class Entry
+    {
+        private final int status;
+
+        private final String message;
+
+        private final long expireAt;
+
+        Entry(int status, String message, long expireAt)
+        {
+            this.status = status;
+            this.message = message;
+            this.expireAt = expireAt;
+        }
+    }
+}
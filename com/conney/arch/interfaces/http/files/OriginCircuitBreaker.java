@@ -0,0 +1,135 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按外网域名的熔断器
+ * 连续失败(5xx或网络异常)达到阈值后熔断, 熔断期间该域名的请求直接失败;
+ * 熔断时间过后放行一个试探请求, 成功则恢复, 失败则继续熔断
+ */
+public class OriginCircuitBreaker
+{
+    private static final Logger logger = LoggerFactory.getLogger(OriginCircuitBreaker.class);
+
+    /**
+     * 默认连续失败阈值
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+
+    /**
+     * 默认熔断时间(毫秒)
+     */
+    public static final long DEFAULT_OPEN_TIME = 1000 * 10;
+
+    private final int failureThreshold;
+
+    private final long openTime;
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public OriginCircuitBreaker()
+    {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+    }
+
+    public OriginCircuitBreaker(int failureThreshold, long openTime)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * 是否允许请求外网
+     *
+     * @param host 外网域名
+     * @return 是否允许
+     */
+    public boolean allow(String host)
+    {
+        Circuit circuit = circuits.get(host);
+
+        if (circuit == null || circuit.allow(openTime))
+        {
+            return true;
+        }
+
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 熔断中(不占用试探请求)
+     *
+     * @param host 外网域名
+     * @return 是否熔断中
+     */
+    public boolean isOpen(String host)
+    {
+        Circuit circuit = circuits.get(host);
+        return circuit != null && circuit.openUntil.get() > System.currentTimeMillis();
+    }
+
+    public void success(String host)
+    {
+        Circuit circuit = circuits.get(host);
+
+        if (circuit != null && circuit.failures.getAndSet(0) >= failureThreshold)
+        {
+            circuit.openUntil.set(0);
+            logger.info("origin circuit closed [host={}]", host);
+        }
+    }
+
+    public void failure(String host)
+    {
+        Circuit circuit = circuits.computeIfAbsent(host, (key) -> new Circuit());
+
+        if (circuit.failures.incrementAndGet() >= failureThreshold)
+        {
+            circuit.openUntil.set(System.currentTimeMillis() + openTime);
+            logger.warn("origin circuit open [host={}\tfailures={}]", host, circuit.failures.get());
+        }
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    private static class Circuit
+    {
+        /**
+         * 连续失败次数
+         */
+        private final AtomicInteger failures = new AtomicInteger(0);
+
+        /**
+         * 熔断结束时间
+         */
+        private final AtomicLong openUntil = new AtomicLong(0);
+
+        /**
+         * 未熔断, 或熔断时间已过且抢到试探请求(试探期间其他请求仍熔断)
+         */
+        boolean allow(long openTime)
+        {
+            long until = openUntil.get();
+            long now = System.currentTimeMillis();
+
+            if (until == 0)
+            {
+                return true;
+            }
+
+            return until <= now && openUntil.compareAndSet(until, now + openTime);
+        }
+    }
+}
@@ -28,22 +28,30 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 
 import static com.conney.arch.interfaces.http.files.FileAssist.*;
 import static org.apache.http.HttpStatus.*;
@@ -58,7 +66,7 @@ import static org.apache.tomcat.util.http.fileupload.IOUtils.closeQuietly;
  *  - A发生异常, B顶替A从外网下载数据, C从B中获取数据
  *  - B发生异常, C顶替B从外网下载数据
  *
- *  Range说明: 只有本地下载才支持Range,也就是盒子上有这个文件时
+ *  Range说明: 本地下载支持Range; 开启mediaStreaming时媒体文件也支持Range(超前于下载位置的Range单独从外网获取)
  */
 public class ShareDownload implements FileMetadataOperator
 {
@@ -95,19 +103,54 @@ public class ShareDownload implements FileMetadataOperator
     private static final int HTTP_CLIENT_CONNECT_TIMEOUT = 15000;
 
     /**
-     * transfer线程池核心线程数
+     * 每次发送给请求的最小字节数
      */
-    private static final int TRANSFER_POOL_CORE = Runtime.getRuntime().availableProcessors() * 2;
+    private static final int TRANSFER_QUANTUM_MIN = 1024 * 4;
 
     /**
-     * transfer线程池最大线程数
+     * 每次发送给请求的最大字节数
      */
-    private static final int TRANSFER_POOL_MAX = TRANSFER_POOL_CORE;
+    private static final int TRANSFER_QUANTUM_MAX = 1024 * 256;
 
     /**
-     * transfer任务队列大小
+     * 写入耗时低于此值(纳秒)且积压足够时加大每次发送的字节数
      */
-    private static final int TRANSFER_POOL_TASK_SIZE = Integer.MAX_VALUE;
+    private static final long TRANSFER_FAST_WRITE_NANOS = 1000 * 1000 * 2;
+
+    /**
+     * 写入耗时高于此值(纳秒)时减小每次发送的字节数
+     */
+    private static final long TRANSFER_SLOW_WRITE_NANOS = 1000 * 1000 * 50;
+
+    /**
+     * 加入时落后下载位置超过此字节数的请求先进入追赶阶段
+     */
+    private static final long CATCH_UP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * 追赶阶段落后下载位置小于此字节数时切换为实时发送
+     */
+    private static final long CATCH_UP_TAIL = TRANSFER_QUANTUM_MAX;
+
+    /**
+     * 媒体文件Range起始位置超过当前下载位置多少字节时,单独从外网按Range获取
+     */
+    private static final long MEDIA_RANGE_AHEAD_THRESHOLD = 1024 * 1024 * 2;
+
+    /**
+     * 未准入文件的直通下载目录(相对于存放根目录)
+     */
+    private static final String STREAM_THROUGH_DIR = ".stream";
+
+    /**
+     * 内存广播每次从外网读取的大小
+     */
+    private static final int BROADCAST_CHUNK_SIZE = 1024 * 64;
+
+    /**
+     * 后台下载繁忙时暂停写入的检查间隔(毫秒)
+     */
+    private static final long BACKGROUND_PAUSE_INTERVAL = 200;
 
     /**
      * http commons下载组件
@@ -130,30 +173,172 @@ public class ShareDownload implements FileMetadataOperator
     private static ExecutorService executor = Executors.newFixedThreadPool(8);
 
     /**
-     * 处理加入共享下载的请求的任务队列
+     * 处理加入共享下载的请求的发送调度器(按下载公平调度,队列有上限)
+     */
+    private static TransferScheduler transferScheduler = new TransferScheduler();
+
+    /**
+     * 追赶阶段执行器(线程用完时直接使用实时发送)
      */
-    private static LinkedBlockingQueue transferQueue = new LinkedBlockingQueue(TRANSFER_POOL_TASK_SIZE);
+    private static ThreadPoolExecutor catchUpExecutor = new ThreadPoolExecutor(0, 32, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r ->
+    {
+        Thread thread = new Thread(r, "share-catch-up");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * 处理加入共享下载的请求的线程池
+     * 发送缓冲区池(按发送字节数分级: 4K, 8K ... 256K), 只在写入期间占用
      */
-    private static ExecutorService transferExecutor = Executors.newFixedThreadPool(128);
+    private static BufferPool[] transferBuffers = transferBuffers();
 
     /**
      * 异步下载执行器
      */
     private static ExecutorService downloadExecutor = Executors.newCachedThreadPool();
 
+    /**
+     * 媒体文件Range下载执行器(高优先级,不与共享下载排队)
+     */
+    private static ExecutorService rangeExecutor = Executors.newCachedThreadPool(r ->
+    {
+        Thread thread = new Thread(r, "share-range");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * 媒体文件是否从下载中的文件直接返回(false时重定向到外网地址)
+     */
+    private static volatile boolean mediaStreaming = false;
+
+    /**
+     * 是否按内容摘要去重(相同md5的文件硬链接到同一份数据)
+     */
+    private static volatile boolean contentDedup = false;
+
+    /**
+     * 状态快照中的url去掉签名参数(状态接口不鉴权, 不能公开签名)
+     */
+    private static final CacheKeyCanonicalizer STATUS_CANONICALIZER = new CacheKeyCanonicalizer();
+
+    /**
+     * 缓存key规范化(去掉签名参数等, 为空时不启用, 以完整url为key)
+     * 启用后池key和本地文件路径改变, 已有的本地文件不再命中, 需要重新下载
+     */
+    private static volatile CacheKeyCanonicalizer canonicalizer;
+
+    /**
+     * url派生数据(uri, 缓存key, 相对路径)缓存
+     */
+    private static DerivedKeyCache derivedKeys = new DerivedKeyCache();
+
+    /**
+     * 本地文件元数据缓存
+     */
+    private static FileMetadataCache metadataCache = new FileMetadataCache();
+
+    /**
+     * 小文件内存缓存(为空时不启用)
+     */
+    private static volatile MemoryObjectCache memoryCache;
+
+    /**
+     * 热点文件内存映射(为空时不启用)
+     */
+    private static volatile MappedFileCache mappedCache;
+
+    /**
+     * 本地文件的返回方式(默认重定向到本地文件地址)
+     */
+    private static volatile LocalFileServer.Mode localServeMode = LocalFileServer.Mode.REDIRECT;
+
+    /**
+     * 在当前请求中返回本地文件
+     */
+    private static LocalFileServer localFileServer = new LocalFileServer();
+
+    /**
+     * 前端代理内部重定向(OFFLOAD方式使用, 为空时仍重定向)
+     */
+    private static volatile InternalRedirect internalRedirect;
+
+    /**
+     * 外网读取和本地写入管道的缓冲区池
+     */
+    private static volatile BufferPool bufferPool = new BufferPool(1024 * 64, 256, true);
+
+    /**
+     * 本地写入的fsync策略
+     */
+    private static volatile WritePipeline.SyncPolicy syncPolicy = WritePipeline.SyncPolicy.NONE;
+
+    /**
+     * 缓存准入策略(为空时全部持久化)
+     */
+    private static volatile CacheAdmission admission;
+
+    /**
+     * 不缓存文件(非原文件和未准入的文件)的内存广播缓冲区大小(0为不启用,未准入的文件使用临时文件直通)
+     */
+    private static volatile int broadcastCapacity = 0;
+
+    /**
+     * 外网错误返回的短时缓存(为空时不启用)
+     */
+    private static volatile NegativeCache negativeCache;
+
+    /**
+     * 按外网域名的熔断器(为空时不启用)
+     */
+    private static volatile OriginCircuitBreaker circuitBreaker;
+
+    /**
+     * 是否按元数据(Cache-Control, Expires, Last-Modified)判断本地文件是否过期并向外网条件请求校验(false时本地文件永久有效)
+     */
+    private static volatile boolean revalidation = false;
+
+    /**
+     * 元数据没有新鲜度信息时的新鲜期(毫秒, -1为永久新鲜)
+     */
+    private static volatile long defaultFreshness = -1;
+
+    /**
+     * 过期后继续返回旧文件同时后台校验的时间(毫秒, 元数据中的stale-while-revalidate优先)
+     */
+    private static volatile long staleWhileRevalidate = 1000 * 60 * 60;
+
+    /**
+     * 请求空闲超时检测(替代tomcat异步超时,异步超时设置为不超时)
+     */
+    private static IdleTimer idleTimer = new IdleTimer();
+
+    static
+    {
+        AsyncContextWrapper.verify();
+    }
+
     /**
      * 下载的uri
      */
     protected URI uri;
 
+    /**
+     * 缓存key(规范化后的uri),用于ShareDownload池,本地文件路径和元数据
+     */
+    protected URI key;
+
     /**
      * 文件(以url域名后面的内容为路径)
      */
     protected File file;
 
+    /**
+     * 文件存放根目录
+     */
+    protected String storeHome;
+
     /**
      * 请求路径
      */
@@ -179,6 +364,11 @@ public class ShareDownload implements FileMetadataOperator
      */
     protected volatile FileMetadata fileMetadata;
 
+    /**
+     * 文件大小(读取外网返回后设置, -1为未知; 状态快照读取, 不访问下载线程修改中的元数据)
+     */
+    protected volatile long contentLength = -1;
+
     /**
      * 非首个下载的请求对象集合
      */
@@ -187,12 +377,71 @@ public class ShareDownload implements FileMetadataOperator
     /**
      * 是否下载完成
      */
-    protected boolean success = false;
+    protected volatile boolean success = false;
+
+    /**
+     * 本地未命中的请求发起的下载需要检查准入
+     */
+    protected boolean admissionCheck = false;
+
+    /**
+     * 未准入,直通下载(不保留本地文件,所有请求结束后删除)
+     */
+    protected volatile boolean streamThrough = false;
+
+    /**
+     * 内存广播缓冲区(不缓存的文件直接从内存发送到所有请求,不经过磁盘)
+     */
+    protected volatile BroadcastBuffer broadcast;
+
+    /**
+     * 外网下载开始时间
+     */
+    protected volatile long startTime;
+
+    /**
+     * 后台下载(预热)的繁忙判断: 为空时不是后台下载; 繁忙且没有请求加入时每写入一段后暂停, 让出外网带宽和磁盘写入
+     */
+    protected volatile BooleanSupplier background;
+
+    /**
+     * 过期的本地文件元数据(不为空时向外网发起条件请求, 304时只更新元数据)
+     */
+    protected volatile FileMetadata staleMetadata;
+
+    /**
+     * 当前下载在发送调度器中的任务队列
+     */
+    protected final TransferScheduler.Flow flow = transferScheduler.newFlow();
+
+    /**
+     * 未完成的分块文件
+     */
+    protected SparseFile store;
 
     /**
-     * start下载完成标记
+     * 生命周期状态: 可加入 -> 收尾中 -> 已完成
      */
-    protected AtomicBoolean completed = new AtomicBoolean(false);
+    protected static final int JOINABLE = 0;
+
+    protected static final int DRAINING = 1;
+
+    protected static final int DONE = 2;
+
+    /**
+     * 共享下载状态(CAS更新,替代同步块)
+     */
+    protected final AtomicInteger state = new AtomicInteger(JOINABLE);
+
+    /**
+     * 收尾时的下载信号(在状态变为DRAINING前设置)
+     */
+    protected volatile Signal finalSignal;
+
+    /**
+     * 下载失败的异常(在状态变为DRAINING前设置)
+     */
+    protected volatile DownloadException error;
 
     /**
      * 下载事件监听
@@ -211,9 +460,7 @@ public class ShareDownload implements FileMetadataOperator
             throw new IllegalArgumentException("storeHome not be null");
         }
 
-        this.uri = URI.create(url);
-        this.relativePath = extractFilename();
-        this.file = new File(storeHome + relativePath);
+        init(url, null, storeHome);
     }
 
     public ShareDownload(URI uri, String storePath)
@@ -228,14 +475,38 @@ public class ShareDownload implements FileMetadataOperator
             throw new IllegalArgumentException("storePath not be null");
         }
 
-        this.uri = uri;
+        init(uri.toString(), uri, storePath);
+    }
+
+    /**
+     * 按url初始化uri, 缓存key, 相对路径和本地文件(同一url的派生数据从缓存获取)
+     */
+    private void init(String url, URI uri, String storeHome)
+    {
+        CacheKeyCanonicalizer canonicalizer = ShareDownload.canonicalizer;
+        DerivedKeyCache.Entry entry = derivedKeys.get(url, storeHome, getClass(), canonicalizer);
+        this.storeHome = storeHome;
+
+        if (entry != null)
+        {
+            this.uri = entry.uri;
+            this.key = entry.key;
+            this.relativePath = entry.relativePath;
+            this.nonRaw = entry.nonRaw;
+            this.file = entry.file;
+            return;
+        }
+
+        this.uri = uri != null ? uri : URI.create(url);
+        this.key = canonicalize(canonicalizer, this.uri);
         this.relativePath = extractFilename();
-        this.file = new File(storePath + relativePath);
+        this.file = new File(storeHome + relativePath);
+        derivedKeys.put(new DerivedKeyCache.Entry(url, storeHome, getClass(), canonicalizer, this.uri, key, relativePath, nonRaw, file));
     }
 
     public String extractFilename()
     {
-        return extractFilename(uri);
+        return extractFilename(key);
     }
 
     public String extractFilename(URI uri)
@@ -269,27 +540,155 @@ public class ShareDownload implements FileMetadataOperator
      */
     public void download(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
     {
-        if (exists())
+        download(request, response, true);
+    }
+
+    /**
+     * 下载文件
+     *
+     * @param request  请求下载对象
+     * @param response 返回数据对象
+     * @param record   是否记录准入访问频率(加入共享下载失败重新进入时为false, 同一请求只记录一次)
+     */
+    private void download(HttpServletRequest request, HttpServletResponse response, boolean record) throws ServletException, IOException
+    {
+        FileMetadata stale = null;
+
+        if (exists() && (stale = stale()) == null)
         {
             local(request, response);
             return;
         }
 
+        staleMetadata = stale;
+
+        DownloadException unavailable = unavailable();
+        if (unavailable != null)
+        {
+            sendError(response, unavailable.getStatus(), unavailable.getMessage());
+            return;
+        }
+
         if (isMediaFile())
         {
-            redirect(response).start(true);
+            if (mediaStreaming)
+            {
+                media(request, response);
+            }
+            else
+            {
+                redirect(response).start(true);
+            }
             return;
         }
 
+        CacheAdmission admission = ShareDownload.admission;
+        if (admission != null && stale == null)
+        {
+            if (record)
+            {
+                admission.record(key);
+            }
+
+            admissionCheck = true;
+        }
+
         ShareDownload shareDownload;
         if ((shareDownload = downloading()) == null)
         {
             suspend(request, response).start();
         }
-        else
+        else if (!shareDownload.join(request))
+        {
+            download(request, response, false);
+        }
+    }
+
+    /**
+     * 判断本地文件是否需要等待外网校验
+     *  - 未开启校验或在新鲜期内: 直接返回本地文件
+     *  - 过期未超过stale-while-revalidate时间: 返回本地文件, 同时后台校验
+     *  - 过期超过stale-while-revalidate时间, 外网不可用时(must-revalidate除外)继续返回本地文件
+     *  - 其他: 与未命中一样由请求等待校验结果(304时返回本地文件, 200时返回新文件)
+     *
+     * @return 需要等待校验时返回过期的元数据, 否则返回null
+     */
+    protected FileMetadata stale()
+    {
+        FileMetadata metadata;
+
+        if (!revalidation || (metadata = metadataCache.get(this)) == null)
+        {
+            return null;
+        }
+
+        long age = now() - metadata.getValidatedTime();
+        long lifetime = metadata.getFreshnessLifetime(defaultFreshness);
+
+        if (lifetime < 0 || age < lifetime)
+        {
+            return null;
+        }
+
+        if (!metadata.isMustRevalidate())
+        {
+            if (age < lifetime + metadata.getStaleWhileRevalidate(staleWhileRevalidate))
+            {
+                revalidate(metadata);
+                return null;
+            }
+
+            if (unavailable() != null)
+            {
+                return null;
+            }
+        }
+
+        return metadata;
+    }
+
+    /**
+     * 后台校验过期的本地文件(通过ShareDownload池去重, 同一文件的下载或校验进行中时不再发起)
+     *
+     * @param stale 过期的元数据
+     */
+    protected void revalidate(FileMetadata stale)
+    {
+        staleMetadata = stale;
+
+        if (downloading() == null)
+        {
+            if (logger.isInfoEnabled())
+            {
+                logger.info("revalidate stale file [uri={}\tvalidated={}]", uri, stale.getValidatedTime());
+            }
+
+            start(true);
+        }
+    }
+
+    /**
+     * 缓存的外网错误或外网域名熔断中时直接返回错误, 不再请求外网
+     *
+     * @return 错误(可以请求外网时返回null)
+     */
+    protected DownloadException unavailable()
+    {
+        NegativeCache negativeCache = ShareDownload.negativeCache;
+        OriginCircuitBreaker circuitBreaker = ShareDownload.circuitBreaker;
+        DownloadException e;
+
+        if (negativeCache != null && (e = negativeCache.get(key)) != null)
+        {
+            return e;
+        }
+
+        if (circuitBreaker != null && uri.getHost() != null && circuitBreaker.isOpen(uri.getHost()))
         {
-            shareDownload.suspend(request, response);
+            return new DownloadException("origin unavailable: " + uri.getHost(), SC_SERVICE_UNAVAILABLE);
         }
+
+        return null;
     }
 
     /**
@@ -298,7 +697,7 @@ public class ShareDownload implements FileMetadataOperator
      *
      * @return ShareDownload
      */
-    protected ShareDownload downloading() { return pool.putIfAbsent(uri, this); }
+    protected ShareDownload downloading() { return pool.putIfAbsent(key, this); }
 
     /**
      * 下载完成后
@@ -307,7 +706,7 @@ public class ShareDownload implements FileMetadataOperator
      */
     protected void downloaded()
     {
-        pool.remove(uri);
+        pool.remove(key, this);
     }
 
     /**
@@ -341,37 +740,376 @@ public class ShareDownload implements FileMetadataOperator
     }
 
     /**
-     * 从本地获取文件下载
+     * 媒体文件下载
+     * 已下载的Range直接从下载中的文件返回,超前于下载位置的Range单独从外网按Range获取,同时后台继续共享下载
      *
-     * @param request 请求数据对象
+     * @param request  请求下载对象
      * @param response 返回数据对象
      */
-    protected void local(HttpServletRequest request, HttpServletResponse response) throws IOException
+    protected void media(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
     {
-        if (logger.isInfoEnabled())
+        ShareDownload shareDownload = downloading();
+        boolean leader = shareDownload == null;
+
+        if (leader)
         {
-            logger.info("local downloading[{}]", uri);
+            shareDownload = this;
         }
 
-        sendRedirect(response, String.format("%s://%s%s", HttpScheme.HTTP.name(), request.getServerName(), relativePath));
+        if (shareDownload.isRangeAhead(request))
+        {
+            shareDownload.fetchRange(request);
+
+            if (leader)
+            {
+                start(true);
+            }
+        }
+        else if (leader)
+        {
+            suspend(request, response).start();
+        }
+        else if (!shareDownload.join(request))
+        {
+            download(request, response);
+        }
     }
 
     /**
-     * 开始下载(非后台下载)
+     * 判断请求的Range是否超前于当前下载位置(后缀Range如bytes=-500视为超前)
+     *
+     * @param request 请求数据对象
+     * @return 是否超前
      */
-    public void start()
+    protected boolean isRangeAhead(HttpServletRequest request)
     {
-        start(false);
+        long start = FileMetadata.getRangeStart(request);
+        return start == FileMetadata.SUFFIX_RANGE_START || (start > 0 && start > position + MEDIA_RANGE_AHEAD_THRESHOLD);
     }
 
     /**
-     * 开始下载
-     * @param background 是否后台下载
+     * 按请求的Range从外网获取数据直接返回到客户端
+     *
+     * @param request 请求数据对象
      */
-    public void start(boolean background)
+    protected void fetchRange(HttpServletRequest request)
     {
-        if (background)
-        {
+        String range = request.getHeader(FileMetadata.RANGE_HEADER_NAME);
+        AsyncContextWrapper asyncContext = startAsync(request);
+        asyncContext.setTimeout(0);
+
+        RangeWatch watch = new RangeWatch(asyncContext, range);
+        idleTimer.watch(watch);
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("fetch range [uri={}\trange={}\tposition={}]", uri, range, position);
+        }
+
+        rangeExecutor.execute(() ->
+        {
+            HttpServletResponse response = asyncContext.getResponse();
+
+            try
+            {
+                if (!servePart(request, response))
+                {
+                    fetchRange(range, response, watch);
+                }
+            }
+            catch (DownloadException e)
+            {
+                logger.warn("fetch range error({}): {} [uri={}]", e.getStatus(), e.getMessage(), uri);
+
+                try
+                {
+                    sendError(response, e.getStatus(), e.getMessage());
+                }
+                catch (IOException ex)
+                {
+                    logger.trace(ex.getMessage(), ex);
+                }
+            }
+            catch (ClientAbortException e)
+            {
+                logger.info("fetch range client abort [uri={}\trange={}]", uri, range);
+            }
+            catch (Throwable e)
+            {
+                logger.error("fetch range error: {} [uri={}\trange={}]", e.getMessage(), uri, range, e);
+            }
+            finally
+            {
+                watch.done = true;
+                asyncContext.complete();
+            }
+        });
+    }
+
+    /**
+     * Range请求的空闲超时检测
+     */
+    private class RangeWatch implements IdleTimer.Watched
+    {
+        private final AsyncContextWrapper asyncContext;
+
+        private final String range;
+
+        private volatile long lastProgress = now();
+
+        private volatile boolean done = false;
+
+        RangeWatch(AsyncContextWrapper asyncContext, String range)
+        {
+            this.asyncContext = asyncContext;
+            this.range = range;
+        }
+
+        void progress()
+        {
+            lastProgress = now();
+        }
+
+        @Override
+        public long getLastProgress()
+        {
+            return lastProgress;
+        }
+
+        @Override
+        public long getIdleTimeout()
+        {
+            return HTTP_CLIENT_SOCKET_TIMEOUT;
+        }
+
+        @Override
+        public boolean isAlive()
+        {
+            return !done;
+        }
+
+        @Override
+        public void expire()
+        {
+            logger.info("fetch range idle timeout [uri={}\trange={}]", uri, range);
+            asyncContext.disconnect();
+        }
+    }
+
+    /**
+     * 从外网按Range获取数据返回到客户端,同时写入分块文件
+     */
+    private void fetchRange(String range, HttpServletResponse response, RangeWatch watch) throws IOException
+    {
+        CloseableHttpResponse chp = null;
+        InputStream in = null;
+        RandomAccessFile fout = null;
+        SparseFile store = store();
+
+        try
+        {
+            chp = source(range);
+            response.setStatus(chp.getStatusLine().getStatusCode());
+            FileMetadata.copyHeaders(chp, response);
+
+            FileMetadata.Range r = FileMetadata.getRange(chp);
+            long start = r != null ? r.start : 0;
+            long pos = start;
+
+            if (r != null && store.matchesOrInit(r.length, FileMetadata.getHeader(chp, FileMetadata.ETAG_HEADER_NAME)))
+            {
+                fout = new RandomAccessFile(createFile(store.getPath()).toFile(), "rw");
+                fout.seek(start);
+            }
+
+            int len;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ServletOutputStream out = response.getOutputStream();
+            in = chp.getEntity().getContent();
+
+            while ((len = in.read(buffer)) != -1)
+            {
+                if (fout != null)
+                {
+                    try
+                    {
+                        fout.write(buffer, 0, len);
+                        store.markAvailable(start, pos + len);
+                    }
+                    catch (IOException e)
+                    {
+                        logger.warn("write part file error: {} [path={}]", e.getMessage(), store.getPath());
+                        closeQuietly(fout);
+                        fout = null;
+                    }
+                }
+
+                out.write(buffer, 0, len);
+                pos += len;
+                watch.progress();
+            }
+        }
+        finally
+        {
+            closeQuietly(in);
+            closeQuietly(chp);
+
+            if (fout != null)
+            {
+                closeQuietly(fout);
+                store.persist();
+            }
+        }
+    }
+
+    /**
+     * 请求的Range已在分块文件中时直接从分块文件返回
+     *
+     * @return 是否已返回
+     */
+    private boolean servePart(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        SparseFile store = this.store;
+        FileMetadata fileMetadata = this.fileMetadata;
+
+        if (store == null || fileMetadata == null)
+        {
+            return false;
+        }
+
+        FileMetadata.Range r = FileMetadata.getRange(request, store.getLength());
+
+        if (r == null || !store.isAvailable(r.start, r.end + 1))
+        {
+            return false;
+        }
+
+        try (RandomAccessFile fin = new RandomAccessFile(store.getPath().toFile(), "r"))
+        {
+            fileMetadata.writeResponse(response);
+            response.setStatus(SC_PARTIAL_CONTENT);
+            response.setHeader(FileMetadata.CONTENT_RANGE_HEADER_NAME, r.toString());
+            response.setHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, String.valueOf(r.end - r.start + 1));
+
+            int len;
+            long remaining = r.end - r.start + 1;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ServletOutputStream out = response.getOutputStream();
+            fin.seek(r.start);
+
+            while (remaining > 0 && (len = fin.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1)
+            {
+                out.write(buffer, 0, len);
+                remaining -= len;
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 从本地获取文件下载
+     *
+     * @param request 请求数据对象
+     * @param response 返回数据对象
+     */
+    protected void local(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        if (logger.isInfoEnabled())
+        {
+            logger.info("local downloading[{}]", uri);
+        }
+
+        LocalFileServer.Mode localServeMode = ShareDownload.localServeMode;
+        FileMetadata metadata;
+
+        if ((ShareDownload.memoryCache != null || ShareDownload.mappedCache != null || localServeMode == LocalFileServer.Mode.IN_PROCESS)
+                && (metadata = metadataCache.get(this)) != null
+                && localFileServer.serve(request, response, metadata, () -> content(localServeMode)))
+        {
+            return;
+        }
+
+        InternalRedirect internalRedirect = ShareDownload.internalRedirect;
+
+        if (localServeMode == LocalFileServer.Mode.OFFLOAD && internalRedirect != null && (metadata = metadataCache.get(this)) != null)
+        {
+            internalRedirect.writeTo(response, metadata, file.toPath(), relativePath);
+            return;
+        }
+
+        sendRedirect(response, String.format("%s://%s%s", HttpScheme.HTTP.name(), request.getServerName(), relativePath));
+    }
+
+    /**
+     * 本地返回的内容来源: 内存缓存, 文件映射, 磁盘文件(IN_PROCESS模式)
+     * 在HEAD, 304和Range判断之后才获取, 304不会读取文件或增加缓存的请求次数
+     *
+     * @param localServeMode 本地文件的返回方式
+     * @return 内容(都不可用时返回null, 由后续方式返回)
+     */
+    private LocalFileServer.Content content(LocalFileServer.Mode localServeMode) throws IOException
+    {
+        Path path = file.toPath();
+        MemoryObjectCache memoryCache = ShareDownload.memoryCache;
+        MappedFileCache mappedCache = ShareDownload.mappedCache;
+        LocalFileServer.Content content;
+
+        if (memoryCache != null && (content = memoryCache.get(path, () -> metadataCache.get(this))) != null)
+        {
+            return content;
+        }
+
+        if (mappedCache != null && (content = mappedCache.acquire(path)) != null)
+        {
+            return content;
+        }
+
+        return localServeMode == LocalFileServer.Mode.IN_PROCESS ? LocalFileServer.open(path) : null;
+    }
+
+    /**
+     * 本地文件变更后移除缓存
+     */
+    protected void invalidate()
+    {
+        MemoryObjectCache memoryCache = ShareDownload.memoryCache;
+        MappedFileCache mappedCache = ShareDownload.mappedCache;
+
+        if (memoryCache != null)
+        {
+            memoryCache.invalidate(file.toPath());
+        }
+
+        if (mappedCache != null)
+        {
+            mappedCache.invalidate(file.toPath());
+        }
+
+        SharedChannel.invalidate(file.toPath());
+        metadataCache.add(this);
+    }
+
+    /**
+     * 开始下载(非后台下载)
+     */
+    public void start()
+    {
+        start(false);
+    }
+
+    /**
+     * 开始下载
+     * @param background 是否后台下载
+     */
+    public void start(boolean background)
+    {
+        if (background)
+        {
             downloadExecutor.execute(() -> start(null, 0));
         }
         else
@@ -382,8 +1120,9 @@ public class ShareDownload implements FileMetadataOperator
 
     /**
      * 开始下载
-     * 下载流程: 读取url中数据 -> 写入本地临时文件 & response写入到metadata -> 文件是否完整(如etag为md5) -> 临时文件名改成url文件名
+     * 下载流程: 读取url中数据 -> 按块写入本地分块文件 & response写入到metadata -> 补齐缺失的块 -> 文件是否完整(如etag为md5) -> 分块文件复制为url文件名
      * 如url请求的http header中带有etag为md5时进行md5校验,没有则不校验
+     * 分块文件中已存在的块(中断的下载或按Range获取的数据)不再从外网获取
      * 最后重新检测一遍transfers是否全部下载完成,如:在外网下载完之后加入的下载的请求情况
      *
      * @param resumeFile 断点续传文件
@@ -399,57 +1138,142 @@ public class ShareDownload implements FileMetadataOperator
         CloseableHttpResponse chp = null;
         InputStream in = null;
         RandomAccessFile fout = null;
-        Path temp = resumeFile;
+        SparseFile store = store();
+        Path temp = store.getPath();
         Signal signal = new Signal(temp, pos);
         long startTime = now();
         long fetchNow = startTime;
-        DownloadException de = null;
 
-        completed.set(false);
+        if (resumeFile == null)
+        {
+            this.startTime = startTime;
+        }
+        DownloadException de = null;
 
         try
         {
+            createFile(temp);
+
+            if (resumeFile == null)
+            {
+                pos = store.nextMissing(0);
+            }
+
             if (logger.isInfoEnabled())
             {
-                logger.info("fetch source [uri={}]", uri);
+                logger.info("fetch source [uri={}\tpos={}]", uri, pos);
             }
 
-            chp = source(pos);
+            chp = source(span(store, pos));
 
             if (chp == null)
             {
                 return;
             }
 
+            if (chp.getStatusLine().getStatusCode() == SC_NOT_MODIFIED)
+            {
+                notModified(chp, startTime);
+                position = fileMetadata.getContentLength();
+                publish(signal);
+                store.delete();
+                return;
+            }
+
+            FileMetadata.Range range = FileMetadata.getRange(chp);
+
             if (fileMetadata == null)
             {
                 fileMetadata = newFileMetadata();
                 fileMetadata.setCreateTime(startTime);
                 fileMetadata.readResponse(chp, relativePath);
+
+                if (range != null)
+                {
+                    fileMetadata.putHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, String.valueOf(range.length));
+                    fileMetadata.removeHeader(FileMetadata.CONTENT_RANGE_HEADER_NAME);
+                }
+            }
+
+            long length = fileMetadata.getContentLength();
+            contentLength = length;
+
+            if (!store.matchesOrInit(length, FileMetadata.getHeader(chp, FileMetadata.ETAG_HEADER_NAME)))
+            {
+                logger.info("discard stale part file [uri={}\tpath={}]", uri, temp);
+
+                store.reset(length, FileMetadata.getHeader(chp, FileMetadata.ETAG_HEADER_NAME));
+
+                if (range != null && range.start > 0)
+                {
+                    closeQuietly(chp);
+                    chp = source(0);
+                    range = null;
+                }
             }
 
             fireEvent(ShareDownloadEventType.DOWNLOAD_BEFORE, fileMetadata);
 
-            if (temp == null)
+            if (contentDedup && linkContent(fileMetadata.getMd5()))
+            {
+                position = length;
+                publish(signal);
+                store.delete();
+                fireEvent(ShareDownloadEventType.DOWNLOAD, fileMetadata, fileMetadata.getCreateTime(), now() - startTime);
+                return;
+            }
+
+            boolean uncacheable = resumeFile == null && !streamThrough && !store.hasData()
+                    && ((nonRaw && broadcastCapacity > 0) || (admissionCheck && !admit(length)));
+
+            if (uncacheable && broadcastCapacity > 0)
             {
-                temp = createTempFile(file.toPath());
+                store.delete();
+                broadcast(chp.getEntity().getContent(), signal);
+                success = true;
+                fireEvent(ShareDownloadEventType.DOWNLOAD, fileMetadata, fileMetadata.getCreateTime(), now() - startTime);
+                return;
+            }
+
+            if (uncacheable)
+            {
+                store = streamThrough();
+                temp = store.getPath();
                 signal.path = temp;
+                createFile(temp);
+                store.matchesOrInit(length, FileMetadata.getHeader(chp, FileMetadata.ETAG_HEADER_NAME));
             }
 
             in = chp.getEntity().getContent();
             fout = new RandomAccessFile(temp.toFile(), "rw");
 
-            FileMetadata.Range range = pos > 0 ? fileMetadata.getRange(chp) : null;
-            String etag = nonRaw ? null : fileMetadata.getMd5();
+            String etag = nonRaw && !contentDedup ? null : fileMetadata.getMd5();
             boolean hasETag = StringUtils.isNotEmpty(etag);
 
-            if (range != null && range.start > -1)
+            position = range != null && range.start > -1 ? range.start : 0;
+            fout.seek(position);
+            writeStream(in, fout, signal, store);
+
+            long next;
+            while ((next = store.nextMissing(position)) < length)
             {
-                position = range.start;
+                closeQuietly(in);
+                closeQuietly(chp);
+
+                chp = source(span(store, next));
+                range = FileMetadata.getRange(chp);
+
+                if (range == null || range.start != next)
+                {
+                    throw new IOException("unexpected range response [expected=" + next + "\tactual=" + range + "]");
+                }
+
+                in = chp.getEntity().getContent();
+                position = next;
                 fout.seek(position);
+                writeStream(in, fout, signal, store);
             }
 
-            writeStream(in, fout, signal);
             String md5 = hasETag ? md5Sum(fout) : null;
 
             if (logger.isInfoEnabled())
@@ -457,16 +1281,31 @@ public class ShareDownload implements FileMetadataOperator
                 logger.info("fetch source completed [uri={}\tduration={}\tetag={}\tmd5={}]", uri, now() - fetchNow, etag, md5);
             }
 
-            if (hasETag && !etag.equalsIgnoreCase(md5))
+            boolean verified = hasETag && etag.equalsIgnoreCase(md5);
+
+            if (hasETag && !verified && !nonRaw)
             {
+                store.reset(length, null);
                 throw new FileMD5NotMatchException(etag, md5, SC_CONFLICT);
             }
 
-            fileMetadata.write();
-            copy(temp.toFile(), file);
+            if (!streamThrough)
+            {
+                fileMetadata.write();
+                replace(temp.toFile(), file);
+                publish(signal);
+                store.delete();
+                invalidate();
+
+                if (contentDedup && verified)
+                {
+                    new ContentStore(storeHome).register(md5, file.toPath());
+                }
+            }
+
             success = true;
             long duration = now() - startTime;
-            fileMetadata.incrDownloadTime(duration - fileMetadata.getWriteLocalTime());
+            fileMetadata.incrDownloadTime(duration);
             fireEvent(ShareDownloadEventType.DOWNLOAD, fileMetadata, fileMetadata.getCreateTime(), duration);
         }
         catch (DownloadException e)
@@ -478,7 +1317,8 @@ public class ShareDownload implements FileMetadataOperator
         {
             logger.error("IO error: {} [uri={}]", e.getMessage(), uri, e);
 
-            if (position > pos)
+            // 内存广播没有本地数据可以续传, 直接结束所有请求
+            if (position > pos && broadcast == null)
             {
                 start(temp, position);
             }
@@ -489,76 +1329,294 @@ public class ShareDownload implements FileMetadataOperator
         }
         finally
         {
-            if (!completed.get())
+            closeQuietly(chp);
+            closeQuietly(in);
+            closeQuietly(fout);
+
+            if (state.get() == JOINABLE)
             {
-                closeQuietly(chp);
-                closeQuietly(in);
-                closeQuietly(fout);
+                if (!success && !streamThrough)
+                {
+                    store.persist();
+                }
 
                 if (logger.isInfoEnabled())
                 {
                     logger.info("release [success={}\turi={}]", success, uri);
                 }
 
-                synchronized (this)
-                {
-                    if (de != null)
-                    {
-                        sendErrorMessages(de.getStatus(), de.getMessage());
-                    }
-
-                    downloaded();
-                    windUp(signal);
-                    completed.set(true);
+                downloaded();
+                drain(signal, de);
+                discardStreamThrough();
 
-                    if (logger.isInfoEnabled())
-                    {
-                        logger.info("completed [uri={}\tcount={}\ttransfer size={}]", uri, getCount(), transfers.size());
-                    }
+                if (logger.isInfoEnabled())
+                {
+                    logger.info("completed [uri={}\tcount={}\ttransfer size={}]", uri, getCount(), transfers.size());
                 }
             }
         }
     }
 
-    private void windUp(Signal signal)
+    /**
+     * 外网返回304: 本地文件未变更, 只更新元数据(刷新校验时间), 等待的请求直接从本地文件发送
+     *
+     * @param chp       外网返回报文
+     * @param startTime 开始时间
+     */
+    private void notModified(CloseableHttpResponse chp, long startTime)
+    {
+        try
+        {
+            fileMetadata = newFileMetadata();
+            fileMetadata.read();
+        }
+        catch (FileMetadataNotExistsException e)
+        {
+            fileMetadata = staleMetadata.copy();
+        }
+
+        fileMetadata.setCreateTime(startTime);
+        fileMetadata.updateResponse(chp);
+        fileMetadata.write();
+        invalidate();
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("not modified, metadata updated [uri={}\tduration={}]", uri, now() - startTime);
+        }
+    }
+
+    /**
+     * 外网返回的md5在本地已有相同内容时直接链接,不再下载
+     *
+     * @param md5 外网返回的md5(ETag)
+     * @return 是否已链接
+     */
+    private boolean linkContent(String md5)
     {
-        Transfer transfer;
-        while ((transfer = transfers.poll()) != null)
+        if (StringUtils.isEmpty(md5) || !new ContentStore(storeHome).link(md5, file.toPath()))
         {
-            if (success) transfer.end(signal);
-            else transfer.terminte();
+            return false;
         }
+
+        fileMetadata.write();
+        invalidate();
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("skip fetch source, content exists [uri={}\tmd5={}]", uri, md5);
+        }
+
+        return true;
     }
 
-    private void sendErrorMessages(int statusCode, String message)
+    /**
+     * 检查外网下载的文件是否准入
+     *
+     * @param length 文件大小
+     * @return 是否准入
+     */
+    private boolean admit(long length)
     {
-        for (Transfer transfer : transfers)
+        CacheAdmission admission = ShareDownload.admission;
+
+        if (admission == null)
         {
-            transfer.sendErrorMessage(statusCode, message);
+            return true;
         }
+
+        CacheAdmission.Decision decision = admission.admit(key, length, fileMetadata.getHeader(FileMetadata.CONTENT_TYPE_HEADER_NAME));
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("cache admission [uri={}\tlength={}\tdecision={}]", uri, length, decision);
+        }
+
+        return decision.isAdmitted();
     }
 
-    private void writeStream(InputStream in, RandomAccessFile fout, Signal signal) throws IOException
+    /**
+     * 内存广播: 外网数据写入环形缓冲区后通知所有请求, 写入等待最慢的请求(停滞超过外网读取超时的请求被终止)
+     *
+     * @param in     外网数据
+     * @param signal 下载信号
+     */
+    private void broadcast(InputStream in, Signal signal) throws IOException
     {
+        if (logger.isInfoEnabled())
+        {
+            logger.info("broadcast without local file [uri={}\tcapacity={}]", uri, broadcastCapacity);
+        }
+
+        BroadcastBuffer broadcast = new BroadcastBuffer(broadcastCapacity, HTTP_CLIENT_SOCKET_TIMEOUT);
+        this.broadcast = broadcast;
+        transfers.forEach((e) -> e.subscribe(broadcast));
+
         int len;
-        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] buffer = new byte[BROADCAST_CHUNK_SIZE];
 
         while ((len = in.read(buffer)) != -1)
         {
-            writeStream(fout, signal, buffer, 0, len);
+            broadcast.write(buffer, 0, len);
+            position += len;
+
+            signal.position = position;
+            transfers.stream().forEach((e) -> e.write(signal));
         }
     }
 
-    private void writeStream(RandomAccessFile fout, Signal signal, byte[] buffer, int off, int len) throws IOException
+    /**
+     * 切换为直通下载: 写入独立的临时分块文件,跟随的请求仍从该文件读取,不替换为本地文件
+     *
+     * @return 临时分块文件
+     */
+    private synchronized SparseFile streamThrough()
     {
-        long duration = now();
-        fout.write(buffer, off, len);
-        position += len;
+        streamThrough = true;
+        store = SparseFile.open(Paths.get(storeHome, STREAM_THROUGH_DIR, UUIDTool.getUUID()));
+        return store;
+    }
 
-        signal.position = position;
-        transfers.stream().forEach((e) -> e.write(signal));
+    /**
+     * 直通下载在下载结束且所有请求都结束后删除临时文件
+     */
+    private void discardStreamThrough()
+    {
+        if (streamThrough && state.get() == DONE && count.get() <= 0)
+        {
+            store.delete();
+        }
+    }
+
+    /**
+     * 获取分块文件
+     *
+     * @return SparseFile
+     */
+    protected synchronized SparseFile store()
+    {
+        if (store == null)
+        {
+            store = SparseFile.open(file.toPath());
+        }
+
+        return store;
+    }
 
-        fileMetadata.incrWriteLocalTime(now() - duration);
+    /**
+     * 从指定位置到下一个已下载块之间的Range
+     *
+     * @param store 分块文件
+     * @param start 起始位置
+     * @return Range(从0开始的完整下载返回null)
+     */
+    private String span(SparseFile store, long start)
+    {
+        long end = store.nextAvailable(start);
+
+        if (end > start && end < store.getLength())
+        {
+            return "bytes=" + start + "-" + (end - 1);
+        }
+
+        return start > 0 ? "bytes=" + start + "-" : null;
+    }
+
+    /**
+     * 发布下载完成的本地文件: 在删除分块文件前设置下载信号的路径和下载完成标记
+     * 之后打开分块文件失败(已删除)的请求一定能看到下载完成并改为打开本地文件
+     */
+    private void publish(Signal signal)
+    {
+        signal.path = file.toPath();
+        success = true;
+    }
+
+    /**
+     * 收尾: 设置收尾信号和异常后状态变为DRAINING, 结束已加入的请求后变为DONE
+     * 状态变更后才加入的请求由join与windUp竞争移除, 移除成功的一方负责结束
+     *
+     * @param signal 下载信号
+     * @param de     下载失败的异常(成功时为null)
+     * @throws IllegalStateException 不是可加入状态(只能收尾一次)
+     */
+    protected void drain(Signal signal, DownloadException de)
+    {
+        if (state.get() != JOINABLE)
+        {
+            throw new IllegalStateException("drain in state " + state.get() + " [uri=" + key + "]");
+        }
+
+        finalSignal = signal;
+        error = de;
+        transition(JOINABLE, DRAINING);
+        windUp(signal, de);
+        transition(DRAINING, DONE);
+    }
+
+    private void transition(int expect, int update)
+    {
+        if (!state.compareAndSet(expect, update))
+        {
+            throw new IllegalStateException("state transition " + expect + " -> " + update + " failed, current " + state.get() + " [uri=" + key + "]");
+        }
+    }
+
+    private void windUp(Signal signal, DownloadException de)
+    {
+        Transfer transfer;
+        while ((transfer = transfers.poll()) != null)
+        {
+            windUp(transfer, signal, de);
+        }
+    }
+
+    private void windUp(Transfer transfer, Signal signal, DownloadException de)
+    {
+        if (de != null)
+        {
+            transfer.sendErrorMessage(de.getStatus(), de.getMessage());
+        }
+
+        if (success) transfer.end(signal);
+        else transfer.terminte();
+    }
+
+    private void writeStream(InputStream in, RandomAccessFile fout, Signal signal, SparseFile store) throws IOException
+    {
+        long start = position;
+        WritePipeline pipeline = new WritePipeline(in, fout.getChannel(), bufferPool, fileMetadata, syncPolicy);
+
+        pipeline.run(position, (written) ->
+        {
+            position = written;
+            store.markAvailable(start, written);
+
+            signal.position = written;
+            transfers.stream().forEach((e) -> e.write(signal));
+            pause();
+        });
+    }
+
+    /**
+     * 后台下载在按需下载繁忙时暂停(写入线程暂停后管道队列写满, 外网读取随之暂停), 有请求加入或线程中断后不再暂停
+     */
+    private void pause()
+    {
+        BooleanSupplier background = this.background;
+
+        while (background != null && transfers.isEmpty() && background.getAsBoolean())
+        {
+            try
+            {
+                TimeUnit.MILLISECONDS.sleep(BACKGROUND_PAUSE_INTERVAL);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     protected void sendRedirect(HttpServletResponse response, String url) throws IOException
@@ -586,62 +1644,144 @@ public class ShareDownload implements FileMetadataOperator
 
     protected ShareDownload redirect(HttpServletResponse response, String url) throws IOException
     {
-        sendRedirect(response, url);
-        return this;
+        sendRedirect(response, url);
+        return this;
+    }
+
+    /**
+     * 获取元数据文件路径
+     *
+     * @return 文件路径
+     */
+    public Path createMetaPath()
+    {
+        return Paths.get(file.getAbsolutePath() + META_SUFFIX);
+    }
+
+    protected CloseableHttpResponse source() throws IOException
+    {
+        return source(0);
+    }
+
+    /**
+     * http(get)请求下载文件
+     *
+     * @param position 断点续传位置
+     * @return http报文
+     */
+    protected CloseableHttpResponse source(long position) throws IOException
+    {
+        return source(position > 0 ? "bytes=" + position + "-" : null);
     }
 
     /**
-     * 获取元数据文件路径
-     *
-     * @return 文件路径
+     * 外网返回错误: 5xx计入熔断, 4xx和5xx写入错误缓存
+     * 416不缓存; 401/403不缓存: 缓存key去掉了签名参数, 一个过期或伪造签名的请求会让签名正确的请求也返回错误
      */
-    public Path createMetaPath()
+    private void sourceFailed(String host, int sc, String error)
     {
-        return Paths.get(file.getAbsolutePath() + META_SUFFIX);
-    }
+        OriginCircuitBreaker circuitBreaker = ShareDownload.circuitBreaker;
+        NegativeCache negativeCache = ShareDownload.negativeCache;
 
-    protected CloseableHttpResponse source() throws IOException
-    {
-        return source(0);
+        if (circuitBreaker != null && host != null)
+        {
+            if (sc >= SC_INTERNAL_SERVER_ERROR) circuitBreaker.failure(host);
+            else circuitBreaker.success(host);
+        }
+
+        if (negativeCache != null && sc != SC_REQUESTED_RANGE_NOT_SATISFIABLE && sc != SC_UNAUTHORIZED && sc != SC_FORBIDDEN)
+        {
+            negativeCache.put(key, sc, "http status code " + sc + " error: " + error);
+        }
     }
 
     /**
      * http(get)请求下载文件
+     * 校验过期文件时(从0开始的完整下载)带上If-None-Match和If-Modified-Since, 外网可以返回304
      *
-     * @param position 断点续传位置
+     * @param range 请求的Range(为空时下载整个文件)
      * @return http报文
      */
-    protected CloseableHttpResponse source(long position) throws IOException
+    protected CloseableHttpResponse source(String range) throws IOException
     {
+        String host = uri.getHost();
+        OriginCircuitBreaker circuitBreaker = ShareDownload.circuitBreaker;
+
+        if (circuitBreaker != null && host != null && !circuitBreaker.allow(host))
+        {
+            throw new DownloadException("origin unavailable: " + host, SC_SERVICE_UNAVAILABLE);
+        }
+
         HttpGet httpGet = new HttpGet(getURL());
         CloseableHttpResponse chp;
         httpGet.setConfig(requestConfig);
         httpGet.setHeader(OSSHeaders.DATE, DateUtil.formatRfc822Date(new Date()));
-        if (position > 0) httpGet.setHeader(FileMetadata.RANGE_HEADER_NAME, "bytes=" + position + "-");
+        if (StringUtils.isNotEmpty(range)) httpGet.setHeader(FileMetadata.RANGE_HEADER_NAME, range);
+
+        FileMetadata stale = staleMetadata;
+        boolean conditional = false;
+
+        if (stale != null && StringUtils.isEmpty(range))
+        {
+            String ifNoneMatch = stale.getIfNoneMatch();
+            String ifModifiedSince = stale.getIfModifiedSince();
+
+            if (ifNoneMatch != null) httpGet.setHeader("If-None-Match", ifNoneMatch);
+            if (ifModifiedSince != null) httpGet.setHeader("If-Modified-Since", ifModifiedSince);
+            conditional = ifNoneMatch != null || ifModifiedSince != null;
+        }
 
         try
         {
             if ((chp = httpClient.execute(httpGet)) != null)
             {
                 int sc = chp.getStatusLine().getStatusCode();
-                if (sc != SC_OK && sc != SC_PARTIAL_CONTENT)
+                if (sc != SC_OK && sc != SC_PARTIAL_CONTENT && !(sc == SC_NOT_MODIFIED && conditional))
                 {
                     String error = Streams.asString(chp.getEntity().getContent());
                     httpGet.abort();
+                    sourceFailed(host, sc, error);
                     throw new DownloadException("http status code "+ sc + " error: " + error, sc);
                 }
             }
 
+            if (circuitBreaker != null && host != null)
+            {
+                circuitBreaker.success(host);
+            }
+
             return chp;
         }
+        catch (DownloadException e)
+        {
+            httpGet.abort();
+            throw e;
+        }
         catch (Throwable e)
         {
             httpGet.abort();
+
+            if (circuitBreaker != null && host != null && e instanceof IOException)
+            {
+                circuitBreaker.failure(host);
+            }
+
             throw e;
         }
     }
 
-    private void addTransfer(HttpServletRequest request)
+    /**
+     * 开始异步请求
+     *
+     * @param request 请求数据对象
+     * @return 异步请求
+     */
+    protected AsyncContextWrapper startAsync(HttpServletRequest request)
+    {
+        return new AsyncContextWrapper(request.startAsync());
+    }
+
+    private Transfer addTransfer(HttpServletRequest request)
     {
         Transfer transfer = new Transfer(request);
         count.incrementAndGet();
@@ -651,31 +1791,45 @@ public class ShareDownload implements FileMetadataOperator
         {
             logger.info("transfer({}) downloading({}) [success={}\turi={}]", transfer.identity, getCount(), success, uri);
         }
+
+        return transfer;
     }
 
     /**
-     * 添加非首个下载的对象,当前下载请求加一
-     *
-     * 下载收尾工作完成但此时新加入进来的请求会卡在同步块中,completed.set(true)目的为了让这些请求重新回到download逻辑,否则在收尾工作完成后进入addTransfer的请求将永远不被处理
+     * 首个下载请求加入(此时ShareDownload刚加入池,一定处于JOINABLE状态)
      *
      * @throws IOException
      */
     protected ShareDownload suspend(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
     {
-        synchronized (this)
+        addTransfer(request);
+        return this;
+    }
+
+    /**
+     * 非首个下载请求加入共享下载,当前下载请求加一
+     * 无锁加入: 先判断状态为JOINABLE再加入transfers,加入后再次检查状态
+     *  - 仍为JOINABLE: 收尾时的windUp一定能取到这个transfer
+     *  - 已不是JOINABLE: 与windUp竞争从transfers中移除,移除成功的一方负责收尾(exactly once),收尾所需的finalSignal和error在状态变更前已设置
+     *
+     * @param request 请求下载对象
+     * @return 是否加入成功(收尾已开始时返回false,由调用方重新走download逻辑,此时ShareDownload已从池中移除)
+     */
+    protected boolean join(HttpServletRequest request)
+    {
+        if (state.get() != JOINABLE)
         {
-            if (completed.compareAndSet(true, false))
-            {
-                download(request, response);
-                completed.set(true);
-            }
-            else
-            {
-                addTransfer(request);
-            }
+            return false;
         }
 
-        return this;
+        Transfer transfer = addTransfer(request);
+
+        if (state.get() != JOINABLE && transfers.remove(transfer))
+        {
+            windUp(transfer, finalSignal, error);
+        }
+
+        return true;
     }
 
     private ShareDownloadEvent createEvent(ShareDownloadEventType type)
@@ -690,7 +1844,7 @@ public class ShareDownload implements FileMetadataOperator
 
     public void fireErrorEvent(String message, String exceptionType, long startTime)
     {
-        if (fileMetadata != null) fileMetadata.incrDownloadTime((now() - startTime - fileMetadata.getWriteLocalTime()));
+        if (fileMetadata != null) fileMetadata.incrDownloadTime(now() - startTime);
         fireEvent(ShareDownloadEventType.DOWNLOAD_ERROR, fileMetadata, message, exceptionType);
     }
 
@@ -817,6 +1971,11 @@ public class ShareDownload implements FileMetadataOperator
         return uri.toString();
     }
 
+    public URI getKey()
+    {
+        return key;
+    }
+
     public FileMetadata getFileMetadata()
     {
         if (fileMetadata == null)
@@ -855,6 +2014,16 @@ public class ShareDownload implements FileMetadataOperator
         return file;
     }
 
+    /**
+     * 设为后台下载
+     *
+     * @param busy 按需下载是否繁忙(繁忙时暂停)
+     */
+    public void setBackground(BooleanSupplier busy)
+    {
+        this.background = busy;
+    }
+
     public int getCount()
     {
         return count.get();
@@ -865,95 +2034,554 @@ public class ShareDownload implements FileMetadataOperator
         return position;
     }
 
-    public static ShareDownload get(String url)
-    {
-        return pool.get(URI.create(url));
-    }
+    public static ShareDownload get(String url)
+    {
+        return pool.get(canonicalize(canonicalizer, URI.create(url)));
+    }
+
+    private static URI canonicalize(CacheKeyCanonicalizer canonicalizer, URI uri)
+    {
+        return canonicalizer != null ? canonicalizer.canonicalize(uri) : uri;
+    }
+
+    public static void setMediaStreaming(boolean mediaStreaming)
+    {
+        ShareDownload.mediaStreaming = mediaStreaming;
+    }
+
+    public static void setCacheKeyCanonicalizer(CacheKeyCanonicalizer canonicalizer)
+    {
+        ShareDownload.canonicalizer = canonicalizer;
+    }
+
+    public static void setMemoryCache(MemoryObjectCache memoryCache)
+    {
+        ShareDownload.memoryCache = memoryCache;
+    }
+
+    public static MemoryObjectCache getMemoryCache()
+    {
+        return memoryCache;
+    }
+
+    public static void setLocalServeMode(LocalFileServer.Mode localServeMode)
+    {
+        ShareDownload.localServeMode = localServeMode;
+    }
+
+    public static void setInternalRedirect(InternalRedirect internalRedirect)
+    {
+        ShareDownload.internalRedirect = internalRedirect;
+    }
+
+    public static void setMappedCache(MappedFileCache mappedCache)
+    {
+        ShareDownload.mappedCache = mappedCache;
+    }
+
+    public static void setContentDedup(boolean contentDedup)
+    {
+        ShareDownload.contentDedup = contentDedup;
+    }
+
+    public static void setAdmission(CacheAdmission admission)
+    {
+        ShareDownload.admission = admission;
+    }
+
+    public static CacheAdmission getAdmission()
+    {
+        return admission;
+    }
+
+    public static void setBroadcastCapacity(int broadcastCapacity)
+    {
+        ShareDownload.broadcastCapacity = broadcastCapacity;
+    }
+
+    public static void setNegativeCache(NegativeCache negativeCache)
+    {
+        ShareDownload.negativeCache = negativeCache;
+    }
+
+    public static void setCircuitBreaker(OriginCircuitBreaker circuitBreaker)
+    {
+        ShareDownload.circuitBreaker = circuitBreaker;
+    }
+
+    public static void setRevalidation(boolean revalidation)
+    {
+        ShareDownload.revalidation = revalidation;
+    }
+
+    public static void setDefaultFreshness(long defaultFreshness)
+    {
+        ShareDownload.defaultFreshness = defaultFreshness;
+    }
+
+    public static void setStaleWhileRevalidate(long staleWhileRevalidate)
+    {
+        ShareDownload.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public static void setSyncPolicy(WritePipeline.SyncPolicy syncPolicy)
+    {
+        ShareDownload.syncPolicy = syncPolicy;
+    }
+
+    public static void setBufferPool(BufferPool bufferPool)
+    {
+        ShareDownload.bufferPool = bufferPool;
+    }
+
+    /**
+     * 判断uri是否在下载中
+     *
+     * @param uri 下载的uri
+     * @return 是否下载中
+     */
+    public static boolean isDownloading(URI uri)
+    {
+        return pool.containsKey(canonicalize(canonicalizer, uri));
+    }
+
+    /**
+     * 所有下载中文件和执行器的状态快照(不加锁)
+     *
+     * @return 状态快照
+     */
+    public static ShareDownloadStatus snapshot()
+    {
+        ShareDownloadStatus status = new ShareDownloadStatus();
+        status.time = System.currentTimeMillis();
+        status.openChannels = SharedChannel.getOpened();
+
+        for (ShareDownload shareDownload : pool.values())
+        {
+            status.downloads.add(shareDownload.status(status.time));
+        }
+
+        status.addExecutor("download", executor);
+        status.executors.add(new ShareDownloadStatus.Executor("transfer", transferScheduler.getActive(), transferScheduler.getThreads(), transferScheduler.getQueued()));
+        status.addExecutor("background", downloadExecutor);
+        status.addExecutor("range", rangeExecutor);
+        status.addExecutor("catch-up", catchUpExecutor);
+        return status;
+    }
+
+    /**
+     * 当前下载的状态快照
+     */
+    protected ShareDownloadStatus.Download status(long now)
+    {
+        ShareDownloadStatus.Download status = new ShareDownloadStatus.Download();
+        long startTime = this.startTime;
+
+        status.uri = STATUS_CANONICALIZER.canonicalize(key).toString();
+        status.position = position;
+        status.contentLength = contentLength;
+        status.count = count.get();
+        status.age = startTime > 0 ? now - startTime : 0;
+        status.throughput = ShareDownloadStatus.rate(status.position, status.age);
+        status.mode = broadcast != null ? "broadcast" : streamThrough ? "stream" : "file";
+
+        for (Transfer transfer : transfers)
+        {
+            status.transfers.add(transfer.status(now, status.position));
+        }
+
+        return status;
+    }
+
+    /**
+     * 下载中的ShareDownload数
+     */
+    public static int getDownloadingSize()
+    {
+        return pool.size();
+    }
+
+    /**
+     * 共享下载非首个下载请求的对象,通过此对象发送到后面请求的客户端
+     */
+    class Transfer implements IdleTimer.Watched
+    {
+        private static final int PHASE_INIT = 0;
+
+        private static final int PHASE_CATCH_UP = 1;
+
+        private static final int PHASE_LIVE = 2;
+
+        private String identity;
+
+        private AtomicReference<Path> file = new AtomicReference<>();
+
+        private HttpServletRequest request;
+
+        private AsyncContextWrapper asyncContext;
+
+        /**
+         * 下载中文件的共享读取通道(同一文件的所有请求共用, 结束时释放)
+         */
+        private volatile SharedChannel in;
+
+        /**
+         * 内存广播的读取者(广播时写入等待该请求, 结束时关闭)
+         */
+        private volatile BroadcastBuffer.Cursor cursor;
+
+        private ServletOutputStream out;
+
+        private long position = 0;
+
+        /**
+         * Range请求的结束位置(不含),非Range请求为-1
+         */
+        private long limit = -1;
+
+        /**
+         * 多个Range请求按multipart/byteranges发送(单个Range或非Range请求为空)
+         */
+        private MultipartRanges multipart;
+
+        /**
+         * 当前发送的multipart段
+         */
+        private int part = 0;
+
+        /**
+         * multipart结束边界已发送
+         */
+        private boolean multipartEnd = false;
+
+        /**
+         * 每次发送的字节数(按客户端写入速度和积压在上下限之间调整)
+         */
+        private int quantum = TRANSFER_QUANTUM_MIN;
+
+        /**
+         * 发送阶段: 0未开始, 1追赶(连续发送已下载的部分), 2实时(跟随下载位置发送)
+         */
+        private volatile int phase = PHASE_INIT;
+
+        /**
+         * 追赶阶段发送的字节数
+         */
+        private volatile long catchUpBytes = 0;
+
+        /**
+         * 追赶阶段用时(毫秒)
+         */
+        private volatile long catchUpTime = 0;
+
+        /**
+         * 进入实时阶段的时间
+         */
+        private volatile long liveStart = 0;
+
+        private boolean valid = false;
+
+        private boolean end = false;
+
+        private volatile boolean abort = false;
+
+        private int statusCode = 0;
+
+        private String errorMessage;
+
+        private long startTime;
+
+        private long timeout = 1000 * 60 * 5;
+
+        private final long createTime = now();
+
+        /**
+         * 最后进展时间(写入数据或收到下载信号)
+         */
+        private volatile long lastProgress = now();
+
+        private AtomicInteger writeTaskNum = new AtomicInteger(0);
+
+        /**
+         * 是否已结束(完成, 客户端断开, 终止, 空闲超时只结束一次)
+         */
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        public Transfer(HttpServletRequest request)
+        {
+            this.request = request;
+            this.asyncContext = startAsync(request);
+            this.valid = true;
+            this.identity = UUIDTool.getUUID();
+
+            asyncContext.setTimeout(0);
+            idleTimer.watch(this);
+        }
+
+        private void ensureOpen(Signal signal) throws IOException
+        {
+            if (!abort && signal != null && file.compareAndSet(null, signal.path))
+            {
+                HttpServletResponse response = asyncContext.getResponse();
+                List<FileMetadata.Range> ranges = fileMetadata.getRanges(request);
+                FileMetadata.Range range = ranges != null && ranges.size() == 1 ? ranges.get(0) : null;
+                multipart = ranges != null && ranges.size() > 1 ? new MultipartRanges(ranges, fileMetadata.getHeader(FileMetadata.CONTENT_TYPE_HEADER_NAME)) : null;
+                long start = multipart != null ? multipart.getStart() : range != null ? range.start : 0;
+
+                if (broadcast != null)
+                {
+                    subscribe(broadcast);
+                }
+
+                if (broadcast != null && start < broadcast.getStart())
+                {
+                    throw new IOException("broadcast data discarded [start=" + start + "\tavailable=" + broadcast.getStart() + "]");
+                }
+
+                in = broadcast == null ? open(file.get()) : null;
+
+                if (closed.get())
+                {
+                    releaseChannel();
+                    return;
+                }
+
+                out = response.getOutputStream();
+                fileMetadata.writeResponse(response);
+                startTime = now();
+
+                position = start;
+
+
+                if (range != null)
+                {
+                    limit = range.end + 1;
+                    response.setStatus(SC_PARTIAL_CONTENT);
+                    response.setHeader(FileMetadata.CONTENT_RANGE_HEADER_NAME, range.toString());
+                    response.setHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, String.valueOf(limit - position));
+                }
+                else if (multipart != null)
+                {
+                    response.setStatus(SC_PARTIAL_CONTENT);
+                    response.setHeader(FileMetadata.CONTENT_TYPE_HEADER_NAME, multipart.getContentType());
+                    response.setHeader(FileMetadata.CONTENT_LENGTH_HEADER_NAME, String.valueOf(multipart.getContentLength()));
+                    position = multipart.get(0).start;
+                    limit = multipart.get(0).end + 1;
+                    out.write(multipart.header(0));
+                }
+            }
+        }
+
+        /**
+         * 当前multipart段发送完后发送下一段的header(按Range顺序, 下一段未下载时等待下载信号), 最后一段发送完后发送结束边界
+         */
+        private void nextPart() throws IOException
+        {
+            if (part + 1 < multipart.size())
+            {
+                FileMetadata.Range range = multipart.get(++part);
+                out.write(multipart.header(part));
+                position = range.start;
+                limit = range.end + 1;
+            }
+            else if (!multipartEnd)
+            {
+                out.write(multipart.closing());
+                multipartEnd = true;
+            }
+        }
+
+        /**
+         * 打开下载中的分块文件,下载完成后分块文件已删除时打开完整文件
+         * 分块文件不存在而本地文件已存在时同样打开本地文件(下载线程发布完成标记之前)
+         */
+        private SharedChannel open(Path path) throws IOException
+        {
+            try
+            {
+                return SharedChannel.acquire(path);
+            }
+            catch (NoSuchFileException e)
+            {
+                if (!success && !ShareDownload.this.file.exists())
+                {
+                    throw e;
+                }
+
+                file.set(ShareDownload.this.file.toPath());
+                return SharedChannel.acquire(ShareDownload.this.file.toPath());
+            }
+        }
 
-    /**
-     * 共享下载非首个下载请求的对象,通过此对象发送到后面请求的客户端
-     */
-    class Transfer
-    {
-        private String identity;
+        private int write0(Signal signal) throws IOException
+        {
+            if (!isAlive())
+            {
+                valid = false;
+                return -1;
+            }
 
-        private AtomicReference<Path> file = new AtomicReference<>();
+            ensureOpen(signal);
 
-        private HttpServletRequest request;
+            if (!isAlive())
+            {
+                return -1;
+            }
 
-        private AsyncContextWrapper asyncContext;
+            if (multipart != null && position >= limit)
+            {
+                nextPart();
+            }
 
-        private RandomAccessFile in;
+            int length;
+            long bound = bound();
 
-        private ServletOutputStream out;
+            if (phase == PHASE_INIT && in != null && !abort)
+            {
+                if (bound - position > CATCH_UP_THRESHOLD && catchUp())
+                {
+                    return 0;
+                }
 
-        private long position = 0;
+                live();
+            }
 
-        private byte[] buffer = new byte[BUFFER_SIZE];
+            int size = (int) Math.min(quantum, bound - position);
+            length = -1;
 
-        private boolean valid = false;
+            if (size > 0)
+            {
+                BufferPool pool = transferBuffer(quantum);
+                ByteBuffer buffer = pool.acquire();
 
-        private boolean end = false;
+                try
+                {
+                    if ((length = read(buffer, size)) > 0)
+                    {
+                        long writeStart = System.nanoTime();
+                        out.write(buffer.array(), 0, length);
+                        position += length;
+                        adapt(length, System.nanoTime() - writeStart, bound - position);
 
-        private volatile boolean abort = false;
+                        writeTrigger();
+                    }
+                    else
+                    {
+                        length = -1;
+                    }
+                }
+                finally
+                {
+                    pool.release(buffer);
+                }
+            }
 
-        private int statusCode = 0;
+            lastProgress = now();
+            return length;
+        }
 
-        private String errorMessage;
+        /**
+         * 可发送的位置(下载中为当前下载位置, Range请求不超过Range结束位置)
+         */
+        private long bound()
+        {
+            long bound = success ? Long.MAX_VALUE : ShareDownload.this.position;
+            return limit != -1 ? Math.min(bound, limit) : bound;
+        }
 
-        private long startTime;
+        /**
+         * 开始追赶阶段: 由追赶线程连续发送已下载的部分, 期间不接收实时发送任务
+         *
+         * @return 是否已开始(追赶线程用完时返回false)
+         */
+        private boolean catchUp()
+        {
+            writeTaskNum.incrementAndGet();
 
-        private long timeout = 1000 * 60 * 5;
+            try
+            {
+                catchUpExecutor.execute(new CatchUpTask());
+                phase = PHASE_CATCH_UP;
+                return true;
+            }
+            catch (RejectedExecutionException e)
+            {
+                writeTaskNum.decrementAndGet();
+                return false;
+            }
+        }
 
-        private AtomicInteger writeTaskNum = new AtomicInteger(0);
+        private void live()
+        {
+            phase = PHASE_LIVE;
+            liveStart = now();
+        }
 
-        public Transfer(HttpServletRequest request)
+        /**
+         * 写入异常: 客户端断开时放弃, 其他异常终止
+         */
+        private void fail(Throwable e)
         {
-            this.request = request;
-            this.asyncContext = new AsyncContextWrapper(request.startAsync());
-            this.valid = true;
-            this.identity = UUIDTool.getUUID();
+            if (closed.get())
+            {
+                return;
+            }
 
-            asyncContext.setTimeout(timeout);
+            if (isAbortEx(e))
+            {
+                abort();
+            }
+            else
+            {
+                logger.error("transfer({}) write error: {} [uri={}]", identity, e.getMessage(), uri, e);
+                terminte();
+            }
         }
 
-        private void ensureOpen(Signal signal) throws IOException
+        private boolean isAbortEx(Throwable e)
         {
-            if (!abort && signal != null && file.compareAndSet(null, signal.path))
-            {
-                HttpServletResponse response = asyncContext.getResponse();
-                in = new RandomAccessFile(file.get().toFile(), "r");
-                out = response.getOutputStream();
-                fileMetadata.writeResponse(response);
-                startTime = now();
+            return e instanceof ClientAbortException || (e instanceof IllegalStateException && e.getMessage().contains("STARTING"));
+        }
 
-                FileMetadata.Range range = fileMetadata.getRange(request);
-                position = range != null ? range.start : 0;
-                in.seek(position);
+        /**
+         * 调整每次发送的字节数: 写满quantum且很快写完,积压还多时加倍; 写入慢时减半
+         *
+         * @param length  本次写入字节数
+         * @param nanos   本次写入耗时
+         * @param backlog 可发送的积压字节数
+         */
+        private void adapt(int length, long nanos, long backlog)
+        {
+            if (length == quantum && nanos < TRANSFER_FAST_WRITE_NANOS && backlog > quantum)
+            {
+                quantum = Math.min(quantum << 1, TRANSFER_QUANTUM_MAX);
+            }
+            else if (nanos > TRANSFER_SLOW_WRITE_NANOS)
+            {
+                quantum = Math.max(quantum >> 1, TRANSFER_QUANTUM_MIN);
             }
         }
 
-        private int write0(Signal signal) throws IOException
+        /**
+         * 从下载中的文件或内存广播缓冲区读取
+         */
+        private int read(ByteBuffer buffer, int size) throws IOException
         {
-            if (!isAlive())
+            if (ShareDownload.this.broadcast != null)
             {
-                valid = false;
-                return -1;
+                BroadcastBuffer.Cursor cursor = this.cursor;
+                return cursor != null ? cursor.read(position, buffer.array(), 0, size) : -1;
             }
 
-            ensureOpen(signal);
+            SharedChannel in = this.in;
 
-            int length;
-            if ((length = in.read(buffer)) != -1)
+            if (in == null)
             {
-                out.write(buffer, 0, length);
-                position += length;
-
-                writeTrigger();
+                return -1;
             }
 
-            asyncContext.resetTimeout();
-            return length;
+            buffer.limit(size);
+            return in.read(buffer, position);
         }
 
         public void write(Signal signal)
@@ -971,7 +2599,7 @@ public class ShareDownload implements FileMetadataOperator
 
         private void writeTrigger(Signal signal)
         {
-            transferExecutor.execute(new WriteTask(signal));
+            flow.submit(new WriteTask(signal));
         }
 
         public void end(Signal signal)
@@ -982,20 +2610,14 @@ public class ShareDownload implements FileMetadataOperator
 
         public void complete()
         {
-            if (!valid)
+            if (!close())
             {
                 return;
             }
 
             try
             {
-                valid = false;
-
-                closeQuietly(in);
-                closeQuietly(out);
-                asyncContext.complete();
-
-                if (fileMetadata != null && fileMetadata.getContentLength() == getPosition())
+                if (fileMetadata != null && (limit != -1 ? limit : fileMetadata.getContentLength()) == getPosition())
                 {
                     fireEvent(ShareDownloadEventType.SHARED_DOWNLOAD, fileMetadata, startTime, now() - startTime);
                 }
@@ -1006,40 +2628,113 @@ public class ShareDownload implements FileMetadataOperator
             }
             finally
             {
-                if (count.decrementAndGet() <= 0 && file.get() != null)
+                if (logger.isInfoEnabled())
                 {
-                    deleteFile(file.get());
+                    logger.info("transfer({}) download completed({}) [uri={}]", identity, getCount(), uri);
                 }
+            }
+        }
 
-                if (logger.isInfoEnabled())
+        /**
+         * 结束请求(所有结束路径都经过这里, 只执行一次): 释放共享读取通道, 关闭输出, 结束异步请求(释放tomcat的请求和连接处理), 请求数减一
+         *
+         * @return 是否由本次调用结束(已结束时返回false)
+         */
+        private boolean close()
+        {
+            if (!closed.compareAndSet(false, true))
+            {
+                return false;
+            }
+
+            valid = false;
+
+            try
+            {
+                releaseChannel();
+                closeQuietly(out);
+                asyncContext.complete();
+            }
+            finally
+            {
+                count.decrementAndGet();
+                discardStreamThrough();
+            }
+
+            return true;
+        }
+
+        /**
+         * 注册为内存广播的读取者(已结束时不注册)
+         */
+        private void subscribe(BroadcastBuffer broadcast)
+        {
+            synchronized (closed)
+            {
+                if (cursor == null && !closed.get())
                 {
-                    logger.info("transfer({}) download completed({}) [uri={}]", identity, getCount(), uri);
+                    cursor = broadcast.open(position);
                 }
             }
         }
 
+        /**
+         * 释放共享读取通道和内存广播的读取者(结束后打开的通道也在这里释放, 不会泄漏)
+         */
+        private void releaseChannel()
+        {
+            SharedChannel in;
+            BroadcastBuffer.Cursor cursor;
+
+            synchronized (closed)
+            {
+                in = this.in;
+                cursor = this.cursor;
+                this.in = null;
+                this.cursor = null;
+            }
+
+            if (in != null)
+            {
+                in.release();
+            }
+
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+
         public void recycle()
         {
             asyncContext = null;
-            buffer = null;
         }
 
+        /**
+         * 客户端断开: 不再发送, 结束异步请求(否则tomcat的请求和连接一直不释放)
+         */
         public Transfer abort()
         {
-            logger.info("transfer({}) client({}) abort [uri={}]", identity, count.decrementAndGet(), uri);
-
             abort = true;
             transfers.remove(this);
+
+            if (close())
+            {
+                logger.info("transfer({}) client({}) abort [uri={}]", identity, getCount(), uri);
+            }
+
             return this;
         }
 
         public Transfer terminte(boolean disconnect)
         {
+            AsyncContextWrapper asyncContext = this.asyncContext;
+
             abort = true;
             file.set(null);
             transfers.remove(this);
             complete();
-            if (disconnect) asyncContext.disconnect();
+            if (disconnect && asyncContext != null) asyncContext.disconnect();
             recycle();
             return this;
         }
@@ -1088,6 +2783,78 @@ public class ShareDownload implements FileMetadataOperator
             return !abort && valid;
         }
 
+        @Override
+        public long getLastProgress()
+        {
+            return lastProgress;
+        }
+
+        @Override
+        public long getIdleTimeout()
+        {
+            return timeout;
+        }
+
+        ShareDownloadStatus.Transfer status(long now, long downloadPosition)
+        {
+            ShareDownloadStatus.Transfer status = new ShareDownloadStatus.Transfer();
+            long startTime = this.startTime;
+
+            status.identity = identity;
+            status.position = position;
+            status.lag = Math.max(0, downloadPosition - status.position);
+            status.age = now - createTime;
+            status.idle = now - lastProgress;
+            status.quantum = quantum;
+            status.phase = phase == PHASE_CATCH_UP ? "catch-up" : phase == PHASE_LIVE ? "live" : "init";
+            status.catchUpBytes = catchUpBytes;
+            status.catchUpTime = catchUpTime;
+            status.liveTime = liveStart > 0 ? now - liveStart : 0;
+            status.writeRate = startTime > 0 ? ShareDownloadStatus.rate(status.position, now - startTime) : 0;
+            return status;
+        }
+
+        /**
+         * 空闲超时: 不在时间轮线程中获取file锁(超时的请求通常阻塞在向慢客户端写入并持有该锁)
+         * 已发送过数据时先断开连接(异步关闭, 不阻塞), 阻塞的写入随之失败并释放锁, 结束请求交给事件执行器
+         */
+        @Override
+        public void expire()
+        {
+            AsyncContextWrapper asyncContext = this.asyncContext;
+
+            if (!isAlive() || asyncContext == null)
+            {
+                return;
+            }
+
+            logger.info("transfer({}) idle timeout [uri={}\tposition={}]", identity, uri, position);
+
+            boolean disconnect = position > 0;
+
+            if (disconnect)
+            {
+                asyncContext.disconnect();
+            }
+
+            executor.execute(() ->
+            {
+                synchronized (file)
+                {
+                    if (isAlive())
+                    {
+                        if (disconnect) terminte(false);
+                        else terminte();
+                    }
+                }
+            });
+        }
+
+        public boolean isRangeCompleted()
+        {
+            return limit != -1 && position >= limit && (multipart == null || multipartEnd);
+        }
+
         public boolean writing()
         {
             return writeTaskNum.get() > 0;
@@ -1120,7 +2887,7 @@ public class ShareDownload implements FileMetadataOperator
             return identity != null ? identity.hashCode() : 0;
         }
 
-        class WriteTask implements Runnable
+        class WriteTask implements TransferScheduler.Task
         {
             Signal signal;
 
@@ -1131,13 +2898,19 @@ public class ShareDownload implements FileMetadataOperator
             }
 
             @Override
-            public void run()
+            public int estimate()
+            {
+                return quantum;
+            }
+
+            @Override
+            public int run()
             {
                 writeTaskNum.decrementAndGet();
 
                 if (!isAlive())
                 {
-                    return;
+                    return 0;
                 }
 
                 synchronized (file)
@@ -1150,37 +2923,120 @@ public class ShareDownload implements FileMetadataOperator
                     }
                     catch (Throwable e)
                     {
-                        if (isAbortEx(e))
-                        {
-                            abort();
-                        }
-                        else
-                        {
-                            logger.error("transfer({}) write error: {} [uri={}]", identity, e.getMessage(), uri, e);
-                            terminte();
-                        }
+                        fail(e);
                     }
 
-                    if (end && length == -1)
+                    if ((end || isRangeCompleted()) && length == -1)
                     {
                         complete();
                         recycle();
                     }
+
+                    return length;
+                }
+            }
+
+            @Override
+            public void reject()
+            {
+                writeTaskNum.decrementAndGet();
+
+                synchronized (file)
+                {
+                    if (isAlive())
+                    {
+                        logger.warn("transfer({}) rejected, transfer queue full [uri={}\tqueued={}]", identity, uri, flow.getQueued());
+                        terminte();
+                    }
                 }
             }
+        }
 
-            private boolean isAbortEx(Throwable e)
+        /**
+         * 追赶阶段: 按最大发送字节数连续发送已下载的部分, 不经过发送调度器
+         * 落后下载位置小于CATCH_UP_TAIL(或下载完成后发送到文件结束)时切换为实时发送
+         */
+        class CatchUpTask implements Runnable
+        {
+            @Override
+            public void run()
             {
-                return e instanceof ClientAbortException || (e instanceof IllegalStateException && e.getMessage().contains("STARTING"));
+                long start = now();
+                long from = position;
+
+                try
+                {
+                    synchronized (file)
+                    {
+                        BufferPool pool = transferBuffer(TRANSFER_QUANTUM_MAX);
+                        ByteBuffer buffer = pool.acquire();
+
+                        try
+                        {
+                            while (isAlive())
+                            {
+                                long bound = bound();
+
+                                if (!success && bound - position <= CATCH_UP_TAIL)
+                                {
+                                    break;
+                                }
+
+                                int size = (int) Math.min(buffer.capacity(), bound - position);
+                                buffer.clear();
+                                int length;
+
+                                if (size <= 0 || (length = read(buffer, size)) <= 0)
+                                {
+                                    break;
+                                }
+
+                                out.write(buffer.array(), 0, length);
+                                position += length;
+                                lastProgress = now();
+                            }
+                        }
+                        catch (Throwable e)
+                        {
+                            fail(e);
+                        }
+                        finally
+                        {
+                            pool.release(buffer);
+                        }
+
+                        catchUpBytes = position - from;
+                        catchUpTime = now() - start;
+                        quantum = TRANSFER_QUANTUM_MAX;
+                        live();
+                    }
+
+                    if (logger.isInfoEnabled())
+                    {
+                        logger.info("transfer({}) caught up [uri={}\tbytes={}\tduration={}]", identity, uri, catchUpBytes, catchUpTime);
+                    }
+                }
+                finally
+                {
+                    writeTaskNum.decrementAndGet();
+
+                    if (isAlive())
+                    {
+                        writeTrigger();
+                    }
+                }
             }
         }
     }
 
     static class Signal
     {
-        protected Path path;
+        /**
+         * 下载中为分块文件, 下载完成后为本地文件(下载线程修改, 发送线程读取)
+         */
+        protected volatile Path path;
 
-        protected long position;
+        protected volatile long position;
 
         Signal(Path path, long position)
         {
@@ -1189,8 +3045,37 @@ public class ShareDownload implements FileMetadataOperator
         }
     }
 
+    private static BufferPool[] transferBuffers()
+    {
+        int levels = Integer.numberOfTrailingZeros(TRANSFER_QUANTUM_MAX / TRANSFER_QUANTUM_MIN) + 1;
+        BufferPool[] pools = new BufferPool[levels];
+
+        for (int i = 0; i < levels; i++)
+        {
+            pools[i] = new BufferPool(TRANSFER_QUANTUM_MIN << i, 256 >> (i / 2), false);
+        }
+
+        return pools;
+    }
+
+    private static BufferPool transferBuffer(int quantum)
+    {
+        return transferBuffers[Integer.numberOfTrailingZeros(quantum / TRANSFER_QUANTUM_MIN)];
+    }
+
+    /**
+     * 发送调度器中排队的任务数
+     */
     public static int getTransferSize()
     {
-        return transferQueue.size();
+        return transferScheduler.getQueued();
+    }
+
+    /**
+     * 发送调度器因队列已满拒绝的任务数
+     */
+    public static long getTransferRejected()
+    {
+        return transferScheduler.getRejected();
     }
 }
\ No newline at end of file
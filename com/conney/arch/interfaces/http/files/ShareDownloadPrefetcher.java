@@ -0,0 +1,390 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量预热下载
+ * 在发布前将一批url预先下载到本地,使客户端的首次请求直接命中本地文件
+ *  - 与ShareDownload池和本地文件去重,已在下载中或已存在的url直接跳过
+ *  - 固定数量的低优先级线程执行下载,当按需下载数达到阈值时暂停(开始前等待, 下载中每写入一段后暂停),让出外网带宽和磁盘写入
+ *  - 待下载队列持久化到文件,重启后调用restore()继续
+ */
+public class ShareDownloadPrefetcher
+{
+    private static final Logger logger = LoggerFactory.getLogger(ShareDownloadPrefetcher.class);
+
+    /**
+     * 默认并发下载数
+     */
+    private static final int DEFAULT_CONCURRENCY = 2;
+
+    /**
+     * 默认按需下载繁忙阈值(下载中的非预热ShareDownload数)
+     */
+    private static final int DEFAULT_BUSY_THRESHOLD = 32;
+
+    /**
+     * 繁忙时的等待间隔(毫秒)
+     */
+    private static final long BUSY_WAIT_INTERVAL = 1000;
+
+    /**
+     * manifest注释行前缀
+     */
+    private static final String COMMENT_PREFIX = "#";
+
+    /**
+     * 文件存放根目录
+     */
+    private final String storeHome;
+
+    /**
+     * 待下载队列的持久化文件
+     */
+    private final Path queueFile;
+
+    /**
+     * 按需下载繁忙阈值
+     */
+    private final int busyThreshold;
+
+    /**
+     * 待下载及下载中的url(按加入顺序, 以缓存key去重)
+     */
+    private final Map<URI, String> queued = new LinkedHashMap<>();
+
+    /**
+     * 预热下载线程池
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 正在预热下载的数量
+     */
+    private final AtomicInteger inflight = new AtomicInteger(0);
+
+    private final AtomicLong submitted = new AtomicLong(0);
+
+    private final AtomicLong skipped = new AtomicLong(0);
+
+    private final AtomicLong completed = new AtomicLong(0);
+
+    private final AtomicLong failed = new AtomicLong(0);
+
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    public ShareDownloadPrefetcher(String storeHome, Path queueFile)
+    {
+        this(storeHome, queueFile, DEFAULT_CONCURRENCY, DEFAULT_BUSY_THRESHOLD);
+    }
+
+    public ShareDownloadPrefetcher(String storeHome, Path queueFile, int concurrency, int busyThreshold)
+    {
+        if (StringUtils.isEmpty(storeHome))
+        {
+            throw new IllegalArgumentException("storeHome not be null");
+        }
+
+        if (concurrency <= 0)
+        {
+            throw new IllegalArgumentException("concurrency must be greater than 0");
+        }
+
+        this.storeHome = storeHome;
+        this.queueFile = queueFile;
+        this.busyThreshold = busyThreshold;
+
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(concurrency, r ->
+        {
+            Thread thread = new Thread(r, "share-prefetch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * 读取持久化的待下载队列并继续下载
+     *
+     * @return 重新加入的url数
+     */
+    public int restore()
+    {
+        if (queueFile == null || !Files.exists(queueFile))
+        {
+            return 0;
+        }
+
+        return prefetch(queueFile);
+    }
+
+    /**
+     * 读取manifest文件(每行一个url,#开头为注释)并预热下载
+     *
+     * @param manifest manifest文件
+     * @return 加入队列的url数
+     */
+    public int prefetch(Path manifest)
+    {
+        try
+        {
+            return prefetch(Files.readAllLines(manifest, StandardCharsets.UTF_8));
+        }
+        catch (IOException e)
+        {
+            logger.error("read prefetch manifest error: {} [path={}]", e.getMessage(), manifest, e);
+            return 0;
+        }
+    }
+
+    /**
+     * 批量预热下载
+     *
+     * @param urls url集合
+     * @return 加入队列的url数
+     */
+    public int prefetch(Collection<String> urls)
+    {
+        List<String> accepted = new ArrayList<>();
+
+        synchronized (queued)
+        {
+            for (String line : urls)
+            {
+                String url = line != null ? line.trim() : null;
+
+                if (StringUtils.isEmpty(url) || url.startsWith(COMMENT_PREFIX))
+                {
+                    continue;
+                }
+
+                URI key = isPresent(url);
+
+                if (key == null || queued.containsKey(key))
+                {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+
+                queued.put(key, url);
+                accepted.add(url);
+            }
+
+            persist();
+        }
+
+        for (String url : accepted)
+        {
+            submitted.incrementAndGet();
+            executor.execute(() -> fetch(url));
+        }
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("prefetch submitted [accepted={}\ttotal={}]", accepted.size(), urls.size());
+        }
+
+        return accepted.size();
+    }
+
+    /**
+     * 判断url是否已在下载中或本地已存在
+     *
+     * @return 需要下载时返回缓存key, 已在下载中,本地已存在或url无效返回null
+     */
+    private URI isPresent(String url)
+    {
+        try
+        {
+            ShareDownload shareDownload = newShareDownload(url);
+            return ShareDownload.isDownloading(shareDownload.getKey()) || shareDownload.exists() ? null : shareDownload.getKey();
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.warn("invalid prefetch url: {} [url={}]", e.getMessage(), url);
+            return null;
+        }
+    }
+
+    private void fetch(String url)
+    {
+        ShareDownload shareDownload = null;
+
+        try
+        {
+            awaitIdle();
+
+            shareDownload = newShareDownload(url);
+
+            if (shareDownload.exists() || shareDownload.downloading() != null)
+            {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            inflight.incrementAndGet();
+
+            try
+            {
+                shareDownload.setBackground(this::isBusy);
+                shareDownload.start();
+            }
+            finally
+            {
+                inflight.decrementAndGet();
+            }
+
+            if (shareDownload.exists())
+            {
+                completed.incrementAndGet();
+                bytes.addAndGet(shareDownload.getFile().length());
+            }
+            else
+            {
+                failed.incrementAndGet();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable e)
+        {
+            failed.incrementAndGet();
+            logger.error("prefetch error: {} [url={}]", e.getMessage(), url, e);
+        }
+        finally
+        {
+            if (shareDownload != null && !Thread.currentThread().isInterrupted())
+            {
+                synchronized (queued)
+                {
+                    queued.remove(shareDownload.getKey());
+                    persist();
+                }
+            }
+        }
+    }
+
+    /**
+     * 按需下载繁忙时等待,预热下载让出外网带宽
+     */
+    private void awaitIdle() throws InterruptedException
+    {
+        while (isBusy())
+        {
+            TimeUnit.MILLISECONDS.sleep(BUSY_WAIT_INTERVAL);
+        }
+    }
+
+    /**
+     * 按需下载是否繁忙(下载中的非预热ShareDownload数达到阈值)
+     */
+    private boolean isBusy()
+    {
+        return ShareDownload.getDownloadingSize() - inflight.get() >= busyThreshold;
+    }
+
+    /**
+     * 将待下载队列写入文件(先写临时文件再替换,避免中途宕机导致文件损坏)
+     */
+    private void persist()
+    {
+        if (queueFile == null)
+        {
+            return;
+        }
+
+        try
+        {
+            Path temp = queueFile.resolveSibling(queueFile.getFileName() + FileAssist.TEMP_SUFFIX);
+            FileAssist.createFile(temp);
+            Files.write(temp, queued.values(), StandardCharsets.UTF_8);
+            Files.move(temp, queueFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            logger.error("persist prefetch queue error: {} [path={}]", e.getMessage(), queueFile, e);
+        }
+    }
+
+    /**
+     * 创建预热使用的ShareDownload,子类可覆盖以设置监听等
+     *
+     * @param url 下载url
+     * @return ShareDownload
+     */
+    protected ShareDownload newShareDownload(String url)
+    {
+        return new ShareDownload(url, storeHome);
+    }
+
+    public Progress getProgress()
+    {
+        Progress progress = new Progress();
+        progress.submitted = submitted.get();
+        progress.skipped = skipped.get();
+        progress.completed = completed.get();
+        progress.failed = failed.get();
+        progress.inflight = inflight.get();
+        progress.bytes = bytes.get();
+
+        synchronized (queued)
+        {
+            progress.pending = queued.size() - progress.inflight;
+        }
+
+        return progress;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 预热进度
+     */
+    public static class Progress
+    {
+        public long submitted;
+
+        public long skipped;
+
+        public long completed;
+
+        public long failed;
+
+        public long pending;
+
+        public long inflight;
+
+        public long bytes;
+
+        @Override
+        public String toString()
+        {
+            return "Progress{" + "submitted=" + submitted + ", skipped=" + skipped + ", completed=" + completed + ", failed=" + failed + ", pending=" + pending + ", inflight=" + inflight + ", bytes=" + bytes + '}';
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.conney.arch.interfaces.http.files;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 共享下载状态快照
+ * 只读取volatile字段和并发集合的弱一致迭代,不加锁,轮询不会阻塞下载和写入(请求的发送位置和发送字节数由发送线程修改, 为近似值)
+ */
+public class ShareDownloadStatus
+{
+    /**
+     * 快照时间
+     */
+    public long time;
+
+    /**
+     * 下载中的文件
+     */
+    public List<Download> downloads = new ArrayList<>();
+
+    /**
+     * 执行器状态
+     */
+    public List<Executor> executors = new ArrayList<>();
+
+    /**
+     * 打开中的共享读取通道数
+     */
+    public int openChannels;
+
+    /**
+     * 下载中的文件状态
+     */
+    public static class Download
+    {
+        /**
+         * 下载的url(去掉签名参数)
+         */
+        public String uri;
+
+        /**
+         * 外网下载位置
+         */
+        public long position;
+
+        /**
+         * 文件大小(-1为未知)
+         */
+        public long contentLength = -1;
+
+        /**
+         * 外网下载速度(字节/秒)
+         */
+        public long throughput;
+
+        /**
+         * 请求数
+         */
+        public int count;
+
+        /**
+         * 下载时长(毫秒)
+         */
+        public long age;
+
+        /**
+         * 下载方式: file, stream, broadcast
+         */
+        public String mode;
+
+        public List<Transfer> transfers = new ArrayList<>();
+    }
+
+    /**
+     * 请求的传输状态
+     */
+    public static class Transfer
+    {
+        public String identity;
+
+        /**
+         * 已发送位置
+         */
+        public long position;
+
+        /**
+         * 落后外网下载位置的字节数
+         */
+        public long lag;
+
+        /**
+         * 发送速度(字节/秒)
+         */
+        public long writeRate;
+
+        /**
+         * 加入时长(毫秒)
+         */
+        public long age;
+
+        /**
+         * 空闲时长(毫秒)
+         */
+        public long idle;
+
+        /**
+         * 当前每次发送的字节数
+         */
+        public int quantum;
+
+        /**
+         * 发送阶段: init, catch-up, live
+         */
+        public String phase;
+
+        /**
+         * 追赶阶段发送的字节数
+         */
+        public long catchUpBytes;
+
+        /**
+         * 追赶阶段用时(毫秒)
+         */
+        public long catchUpTime;
+
+        /**
+         * 实时阶段时长(毫秒)
+         */
+        public long liveTime;
+    }
+
+    /**
+     * 执行器状态
+     */
+    public static class Executor
+    {
+        public String name;
+
+        public int active;
+
+        public int poolSize;
+
+        public int queued;
+
+        public Executor(String name, int active, int poolSize, int queued)
+        {
+            this.name = name;
+            this.active = active;
+            this.poolSize = poolSize;
+            this.queued = queued;
+        }
+    }
+
+    void addExecutor(String name, ExecutorService executor)
+    {
+        if (executor instanceof ThreadPoolExecutor)
+        {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            executors.add(new Executor(name, pool.getActiveCount(), pool.getPoolSize(), pool.getQueue().size()));
+        }
+    }
+
+    static long rate(long bytes, long millis)
+    {
+        return millis > 0 ? bytes * 1000 / millis : 0;
+    }
+
+    /**
+     * 转换为json
+     */
+    public String toJson()
+    {
+        StringBuilder sb = new StringBuilder(256 + downloads.size() * 256);
+        sb.append("{\"time\":").append(time).append(",\"openChannels\":").append(openChannels).append(",\"downloads\":[");
+
+        for (int i = 0; i < downloads.size(); i++)
+        {
+            Download d = downloads.get(i);
+            sb.append(i > 0 ? "," : "").append("{\"uri\":");
+            quote(sb, d.uri);
+            sb.append(",\"position\":").append(d.position)
+                    .append(",\"contentLength\":").append(d.contentLength)
+                    .append(",\"throughput\":").append(d.throughput)
+                    .append(",\"count\":").append(d.count)
+                    .append(",\"age\":").append(d.age)
+                    .append(",\"mode\":");
+            quote(sb, d.mode);
+            sb.append(",\"transfers\":[");
+
+            for (int j = 0; j < d.transfers.size(); j++)
+            {
+                Transfer t = d.transfers.get(j);
+                sb.append(j > 0 ? "," : "").append("{\"identity\":");
+                quote(sb, t.identity);
+                sb.append(",\"position\":").append(t.position)
+                        .append(",\"lag\":").append(t.lag)
+                        .append(",\"writeRate\":").append(t.writeRate)
+                        .append(",\"age\":").append(t.age)
+                        .append(",\"idle\":").append(t.idle)
+                        .append(",\"quantum\":").append(t.quantum)
+                        .append(",\"phase\":");
+                quote(sb, t.phase);
+                sb.append(",\"catchUpBytes\":").append(t.catchUpBytes)
+                        .append(",\"catchUpTime\":").append(t.catchUpTime)
+                        .append(",\"liveTime\":").append(t.liveTime)
+                        .append('}');
+            }
+
+            sb.append("]}");
+        }
+
+        sb.append("],\"executors\":[");
+
+        for (int i = 0; i < executors.size(); i++)
+        {
+            Executor e = executors.get(i);
+            sb.append(i > 0 ? "," : "").append("{\"name\":");
+            quote(sb, e.name);
+            sb.append(",\"active\":").append(e.active)
+                    .append(",\"poolSize\":").append(e.poolSize)
+                    .append(",\"queued\":").append(e.queued)
+                    .append('}');
+        }
+
+        return sb.append("]}").toString();
+    }
+
+    private static void quote(StringBuilder sb, String value)
+    {
+        if (value == null)
+        {
+            sb.append("null");
+            return;
+        }
+
+        sb.append('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+            {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+
+        sb.append('"');
+    }
+}
@@ -0,0 +1,25 @@
+package com.conney.arch.interfaces.http.files;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 共享下载状态(只读),返回ShareDownload.snapshot()的json
+ */
+public class ShareDownloadStatusServlet extends HttpServlet
+{
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    {
+        byte[] body = ShareDownload.snapshot().toJson().getBytes(StandardCharsets.UTF_8);
+
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+}
@@ -0,0 +1,149 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 共享的只读FileChannel
+ * 同一文件的所有请求共用一个FileChannel, 按各自的位置读取(pread), 按引用计数管理, 最后一个请求释放时关闭
+ * 文件描述符和open/close次数不再随请求数增长
+ */
+public class SharedChannel
+{
+    private static final Logger logger = LoggerFactory.getLogger(SharedChannel.class);
+
+    /**
+     * 打开中的文件
+     */
+    private static final Map<Path, SharedChannel> channels = new ConcurrentHashMap<>();
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /**
+     * 引用计数, -1表示已关闭
+     */
+    private final AtomicInteger refs = new AtomicInteger(0);
+
+    private SharedChannel(Path path, FileChannel channel)
+    {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * 获取文件的共享通道(引用计数加一), 使用完后必须调用release
+     *
+     * @param path 文件
+     * @return 共享通道
+     * @throws IOException 文件不存在或打开失败
+     */
+    public static SharedChannel acquire(Path path) throws IOException
+    {
+        for (;;)
+        {
+            SharedChannel shared = channels.get(path);
+
+            if (shared == null)
+            {
+                shared = new SharedChannel(path, FileChannel.open(path, StandardOpenOption.READ));
+                SharedChannel exists = channels.putIfAbsent(path, shared);
+
+                if (exists != null)
+                {
+                    shared.closeQuietly();
+                    shared = exists;
+                }
+            }
+
+            if (shared.retain())
+            {
+                return shared;
+            }
+
+            channels.remove(path, shared);
+        }
+    }
+
+    /**
+     * 文件被删除或替换时移除(正在使用的请求继续读取旧文件, 之后的请求重新打开)
+     *
+     * @param path 文件
+     */
+    public static void invalidate(Path path)
+    {
+        channels.remove(path);
+    }
+
+    /**
+     * 打开中的文件数
+     */
+    public static int getOpened()
+    {
+        return channels.size();
+    }
+
+    private boolean retain()
+    {
+        int n;
+        do
+        {
+            if ((n = refs.get()) < 0)
+            {
+                return false;
+            }
+        }
+        while (!refs.compareAndSet(n, n + 1));
+
+        return true;
+    }
+
+    /**
+     * 释放引用, 最后一个引用释放时关闭
+     */
+    public void release()
+    {
+        if (refs.decrementAndGet() == 0 && refs.compareAndSet(0, -1))
+        {
+            channels.remove(path, this);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * 从指定位置读取
+     *
+     * @return 读取的字节数, 文件结束返回-1
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException
+    {
+        return channel.read(buffer, position);
+    }
+
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+
+    private void closeQuietly()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("close channel error: {} [path={}]", e.getMessage(), path);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * 分块存储的未完成文件
+ * 数据按文件偏移写入.part文件,按固定大小分块,已下载的块记录在.bitmap文件中
+ * 中断的下载和按Range获取的数据都会保留,后续下载只获取缺失的块
+ */
+public class SparseFile
+{
+    private static final Logger logger = LoggerFactory.getLogger(SparseFile.class);
+
+    /**
+     * 默认块大小
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * 数据文件后缀名
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * 位图文件后缀名
+     */
+    public static final String BITMAP_SUFFIX = ".bitmap";
+
+    /**
+     * 新增多少个块后持久化一次位图
+     */
+    private static final int PERSIST_INTERVAL_CHUNKS = 16;
+
+    /**
+     * 数据文件路径
+     */
+    private final Path path;
+
+    /**
+     * 位图文件路径
+     */
+    private final Path bitmapPath;
+
+    /**
+     * 块大小
+     */
+    private int chunkSize;
+
+    /**
+     * 文件总长度(-1为未知)
+     */
+    private long length = -1;
+
+    /**
+     * 文件标识(源站ETag),用于判断已下载的块是否属于同一个文件
+     */
+    private String tag;
+
+    /**
+     * 已下载的块
+     */
+    private BitSet chunks = new BitSet();
+
+    /**
+     * 未持久化的新增块数
+     */
+    private int dirty = 0;
+
+    /**
+     * 是否已删除(删除后不再记录和持久化)
+     */
+    private boolean deleted = false;
+
+    private SparseFile(Path path, int chunkSize)
+    {
+        this.path = path;
+        this.bitmapPath = Paths.get(path.toString() + BITMAP_SUFFIX);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 打开分块文件,存在位图文件时读取已下载的块
+     *
+     * @param file 完整文件
+     * @return SparseFile
+     */
+    public static SparseFile open(Path file)
+    {
+        return open(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    public static SparseFile open(Path file, int chunkSize)
+    {
+        SparseFile sparseFile = new SparseFile(Paths.get(file.toString() + PART_SUFFIX), chunkSize);
+        sparseFile.read();
+        return sparseFile;
+    }
+
+    private void read()
+    {
+        if (!Files.exists(bitmapPath) || !Files.exists(path))
+        {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(bitmapPath)))
+        {
+            long length = in.readLong();
+            int chunkSize = in.readInt();
+            String tag = in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.tag = tag.isEmpty() ? null : tag;
+            this.chunks = BitSet.valueOf(bytes);
+        }
+        catch (IOException e)
+        {
+            logger.warn("read bitmap error: {} [path={}]", e.getMessage(), bitmapPath);
+        }
+    }
+
+    /**
+     * 持久化位图(先将数据文件刷到磁盘, 再写临时文件替换位图)
+     * 位图先于数据落盘时, 宕机后位图记录的块可能没有数据, 会被当作已下载的数据返回
+     */
+    public synchronized void persist()
+    {
+        if (deleted || length < 0)
+        {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+        {
+            channel.force(false);
+        }
+        catch (IOException e)
+        {
+            logger.error("force part file error: {} [path={}]", e.getMessage(), path, e);
+            return;
+        }
+
+        Path temp = Paths.get(bitmapPath.toString() + FileAssist.TEMP_SUFFIX);
+
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(FileAssist.createFile(temp))))
+        {
+            byte[] bytes = chunks.toByteArray();
+            out.writeLong(length);
+            out.writeInt(chunkSize);
+            out.writeUTF(tag != null ? tag : "");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        catch (IOException e)
+        {
+            logger.error("write bitmap error: {} [path={}]", e.getMessage(), bitmapPath, e);
+            return;
+        }
+
+        try
+        {
+            Files.move(temp, bitmapPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = 0;
+        }
+        catch (IOException e)
+        {
+            logger.error("write bitmap error: {} [path={}]", e.getMessage(), bitmapPath, e);
+        }
+    }
+
+    /**
+     * 判断已下载的块是否属于指定的文件,未初始化时用指定的长度和标识初始化
+     *
+     * @param length 文件总长度
+     * @param tag    文件标识
+     * @return 是否匹配(已删除时返回false)
+     */
+    public synchronized boolean matchesOrInit(long length, String tag)
+    {
+        if (deleted)
+        {
+            return false;
+        }
+
+        if (this.length < 0 && length >= 0)
+        {
+            this.length = length;
+            this.tag = tag;
+            this.chunks.clear();
+            return true;
+        }
+
+        return this.length == length && Objects.equals(this.tag, tag);
+    }
+
+    /**
+     * 重置为新的文件(清空已下载的块)
+     */
+    public synchronized void reset(long length, String tag)
+    {
+        this.length = length;
+        this.tag = tag;
+        this.chunks.clear();
+        this.dirty = 0;
+    }
+
+    /**
+     * 记录[start, end)范围内已完整写入的块
+     *
+     * @param start 写入的起始位置
+     * @param end   写入的结束位置(不含)
+     */
+    public synchronized void markAvailable(long start, long end)
+    {
+        if (deleted || length < 0)
+        {
+            return;
+        }
+
+        int from = (int) ((start + chunkSize - 1) / chunkSize);
+        int to = end >= length ? chunkCount() : (int) (end / chunkSize);
+
+        if (from < to)
+        {
+            int before = chunks.cardinality();
+            chunks.set(from, to);
+
+            if ((dirty += chunks.cardinality() - before) >= PERSIST_INTERVAL_CHUNKS)
+            {
+                persist();
+            }
+        }
+    }
+
+    /**
+     * 判断[start, end)范围的数据是否已下载
+     */
+    public synchronized boolean isAvailable(long start, long end)
+    {
+        if (length < 0 || start < 0 || end > length || start >= end)
+        {
+            return false;
+        }
+
+        int from = (int) (start / chunkSize);
+        int to = (int) ((end - 1) / chunkSize);
+        int clear = chunks.nextClearBit(from);
+        return clear > to;
+    }
+
+    /**
+     * 从指定位置开始第一个缺失的块的起始位置
+     *
+     * @param from 起始位置
+     * @return 缺失块的起始位置(没有缺失时返回文件长度, 长度未知时返回from)
+     */
+    public synchronized long nextMissing(long from)
+    {
+        if (length < 0)
+        {
+            return from;
+        }
+
+        if (from >= length)
+        {
+            return length;
+        }
+
+        int index = chunks.nextClearBit((int) (from / chunkSize));
+        return index >= chunkCount() ? length : Math.max(from, (long) index * chunkSize);
+    }
+
+    /**
+     * 从指定位置开始第一个已下载的块的起始位置
+     *
+     * @param from 起始位置
+     * @return 已下载块的起始位置(没有时返回文件长度, 长度未知时返回-1)
+     */
+    public synchronized long nextAvailable(long from)
+    {
+        if (length < 0)
+        {
+            return -1;
+        }
+
+        int index = chunks.nextSetBit((int) ((from + chunkSize - 1) / chunkSize));
+        return index == -1 || index >= chunkCount() ? length : (long) index * chunkSize;
+    }
+
+    public synchronized boolean hasData()
+    {
+        return length >= 0 && !chunks.isEmpty();
+    }
+
+    public synchronized boolean isComplete()
+    {
+        return length >= 0 && chunks.nextClearBit(0) >= chunkCount();
+    }
+
+    /**
+     * 删除数据文件和位图文件(正在读取的共享通道继续读取已删除的文件)
+     */
+    public synchronized void delete()
+    {
+        deleted = true;
+        SharedChannel.invalidate(path);
+        FileAssist.deleteFile(bitmapPath);
+        FileAssist.deleteFile(path);
+    }
+
+    private int chunkCount()
+    {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    public synchronized long getLength()
+    {
+        return length;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+}
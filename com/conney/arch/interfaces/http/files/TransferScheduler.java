@@ -0,0 +1,310 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 共享下载的发送任务调度器(按下载公平调度)
+ * 每个ShareDownload对应一个Flow, 有任务的Flow在就绪队列中轮转(deficit round robin):
+ *  - Flow到达队首时如果额度(deficit)用完则补充quantum字节, 补充后仍没有额度(上一轮超出)的放到队尾, 否则取出一个任务, 先按任务预计的字节数扣减额度再执行
+ *  - 扣减后还有额度的Flow放回队首(本轮继续), 额度用完的放到队尾; 多个线程可以同时执行同一个Flow的任务, 但额度在执行前扣减, 同时执行的任务不会超出本轮额度
+ *  - 执行后按实际写出的字节数修正额度, 超出的部分(负额度)带到下一轮, Flow暂时没有任务移出就绪队列时也不清除
+ *  - Flow内的任务先进先出, 每个Transfer同时只有一个任务, 执行后重新提交到队尾, 即同一下载的Transfer之间轮转
+ * 每个Flow和全局的任务数都有上限, 超过时拒绝任务(由任务决定如何处理, 如终止该请求)
+ * 一个文件有大量请求时只消耗自己的额度, 不会延迟其他下载的发送
+ */
+public class TransferScheduler
+{
+    private static final Logger logger = LoggerFactory.getLogger(TransferScheduler.class);
+
+    /**
+     * 默认线程数
+     */
+    public static final int DEFAULT_THREADS = 128;
+
+    /**
+     * 默认每轮额度(字节)
+     */
+    public static final int DEFAULT_QUANTUM = 1024 * 64;
+
+    /**
+     * 默认每个Flow的任务数上限
+     */
+    public static final int DEFAULT_FLOW_CAPACITY = 1024 * 16;
+
+    /**
+     * 默认全局任务数上限
+     */
+    public static final int DEFAULT_MAX_QUEUED = 1024 * 256;
+
+    /**
+     * 发送任务
+     */
+    public interface Task
+    {
+        /**
+         * 预计最多写出的字节数(执行前按此扣减额度)
+         */
+        int estimate();
+
+        /**
+         * 执行任务
+         *
+         * @return 写出的字节数(用于修正额度)
+         */
+        int run();
+
+        /**
+         * 队列已满,任务被拒绝
+         */
+        void reject();
+    }
+
+    private final int threads;
+
+    private final int quantum;
+
+    private final int flowCapacity;
+
+    private final int maxQueued;
+
+    /**
+     * 有任务的Flow
+     */
+    private final BlockingDeque<Flow> ready = new LinkedBlockingDeque<>();
+
+    /**
+     * 全局排队任务数
+     */
+    private final AtomicInteger queued = new AtomicInteger(0);
+
+    /**
+     * 执行中的任务数
+     */
+    private final AtomicInteger active = new AtomicInteger(0);
+
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public TransferScheduler()
+    {
+        this(DEFAULT_THREADS, DEFAULT_QUANTUM, DEFAULT_FLOW_CAPACITY, DEFAULT_MAX_QUEUED);
+    }
+
+    public TransferScheduler(int threads, int quantum, int flowCapacity, int maxQueued)
+    {
+        this.threads = threads;
+        this.quantum = quantum;
+        this.flowCapacity = flowCapacity;
+        this.maxQueued = maxQueued;
+
+        for (int i = 0; i < threads; i++)
+        {
+            Thread thread = new Thread(this::work, "share-transfer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * 创建Flow(每个ShareDownload一个)
+     */
+    public Flow newFlow()
+    {
+        return new Flow();
+    }
+
+    private void work()
+    {
+        for (;;)
+        {
+            Flow flow;
+
+            try
+            {
+                flow = ready.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            if (flow.deficit.get() <= 0 && flow.deficit.addAndGet(quantum) <= 0)
+            {
+                ready.offerLast(flow);
+                continue;
+            }
+
+            Task task = flow.poll();
+
+            if (task == null)
+            {
+                park(flow);
+                continue;
+            }
+
+            int charged = Math.max(1, task.estimate());
+            int written = charged;
+            flow.deficit.addAndGet(-charged);
+
+            if (flow.isEmpty())
+            {
+                park(flow);
+            }
+            else if (flow.deficit.get() > 0)
+            {
+                ready.offerFirst(flow);
+            }
+            else
+            {
+                ready.offerLast(flow);
+            }
+
+            active.incrementAndGet();
+
+            try
+            {
+                written = Math.max(1, task.run());
+            }
+            catch (Throwable e)
+            {
+                logger.error("transfer task error: {}", e.getMessage(), e);
+            }
+            finally
+            {
+                active.decrementAndGet();
+                flow.deficit.addAndGet(charged - written);
+            }
+        }
+    }
+
+    /**
+     * Flow没有任务时移出就绪队列(剩余额度清零, 负额度保留到下一轮), 移出时有新任务则重新加入
+     */
+    private void park(Flow flow)
+    {
+        flow.deficit.updateAndGet(deficit -> Math.min(deficit, 0));
+        flow.scheduled.set(false);
+
+        if (!flow.isEmpty() && flow.scheduled.compareAndSet(false, true))
+        {
+            ready.offerLast(flow);
+        }
+    }
+
+    public int getQueued()
+    {
+        return queued.get();
+    }
+
+    public int getActive()
+    {
+        return active.get();
+    }
+
+    public int getReadyFlows()
+    {
+        return ready.size();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * 一个下载的任务队列
+     */
+    public class Flow
+    {
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        private final AtomicInteger deficit = new AtomicInteger(0);
+
+        /**
+         * 是否在就绪队列中(或正在被取出处理)
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /**
+         * 提交任务, 超过上限时调用task.reject()
+         *
+         * @param task 发送任务
+         */
+        public void submit(Task task)
+        {
+            if (size.incrementAndGet() > flowCapacity)
+            {
+                size.decrementAndGet();
+                reject(task);
+                return;
+            }
+
+            if (queued.incrementAndGet() > maxQueued)
+            {
+                queued.decrementAndGet();
+                size.decrementAndGet();
+                reject(task);
+                return;
+            }
+
+            tasks.offer(task);
+
+            if (scheduled.compareAndSet(false, true))
+            {
+                ready.offerLast(this);
+            }
+        }
+
+        private void reject(Task task)
+        {
+            rejected.incrementAndGet();
+
+            try
+            {
+                task.reject();
+            }
+            catch (Throwable e)
+            {
+                logger.warn("reject transfer task error: {}", e.getMessage(), e);
+            }
+        }
+
+        private Task poll()
+        {
+            Task task = tasks.poll();
+
+            if (task != null)
+            {
+                size.decrementAndGet();
+                queued.decrementAndGet();
+            }
+
+            return task;
+        }
+
+        private boolean isEmpty()
+        {
+            return tasks.isEmpty();
+        }
+
+        public int getQueued()
+        {
+            return size.get();
+        }
+    }
+}
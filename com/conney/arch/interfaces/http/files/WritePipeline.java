@@ -0,0 +1,348 @@
+package com.conney.arch.interfaces.http.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 外网读取和本地写入分离的两段式管道
+ *  - 读取线程: 从外网InputStream读取到池化的缓冲区,放入有界队列(队列满时阻塞,形成背压)
+ *  - 写入线程(调用run的线程): 合并队列中已有的缓冲区,按位置一次写入(writev),写入完成后才发布新的位置
+ * 外网慢时写入线程不会等待凑满合并大小,磁盘慢时读取线程继续读取直到队列满
+ */
+public class WritePipeline
+{
+    private static final Logger logger = LoggerFactory.getLogger(WritePipeline.class);
+
+    /**
+     * 默认队列长度(缓冲区个数)
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    /**
+     * 默认合并写入大小
+     */
+    public static final int DEFAULT_AGGREGATE_SIZE = 1024 * 512;
+
+    /**
+     * 读取线程放入队列的等待间隔(毫秒),用于检查管道是否已关闭
+     */
+    private static final long OFFER_INTERVAL = 100;
+
+    /**
+     * 结束标记
+     */
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    /**
+     * 外网读取执行器
+     */
+    private static ExecutorService readerExecutor = Executors.newCachedThreadPool(r ->
+    {
+        Thread thread = new Thread(r, "share-source-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * fsync策略
+     */
+    public enum SyncPolicy
+    {
+        /**
+         * 不主动fsync,由操作系统刷盘
+         */
+        NONE,
+
+        /**
+         * 下载完成时fsync一次
+         */
+        ON_COMPLETE,
+
+        /**
+         * 每次合并写入后fsync
+         */
+        EVERY_WRITE
+    }
+
+    /**
+     * 写入完成的回调
+     */
+    public interface Listener
+    {
+        /**
+         * 数据已写入到position
+         *
+         * @param position 已写入的位置
+         */
+        void onWritten(long position) throws IOException;
+    }
+
+    private final InputStream in;
+
+    private final FileChannel channel;
+
+    private final BufferPool pool;
+
+    private final FileMetadata fileMetadata;
+
+    private final SyncPolicy syncPolicy;
+
+    private final int aggregateSize;
+
+    private final BlockingQueue<ByteBuffer> queue;
+
+    /**
+     * 读取线程的异常
+     */
+    private volatile IOException error;
+
+    /**
+     * 管道已关闭(写入线程结束)
+     */
+    private volatile boolean closed = false;
+
+    public WritePipeline(InputStream in, FileChannel channel, BufferPool pool, FileMetadata fileMetadata, SyncPolicy syncPolicy)
+    {
+        this(in, channel, pool, fileMetadata, syncPolicy, DEFAULT_QUEUE_SIZE, DEFAULT_AGGREGATE_SIZE);
+    }
+
+    public WritePipeline(InputStream in, FileChannel channel, BufferPool pool, FileMetadata fileMetadata, SyncPolicy syncPolicy, int queueSize, int aggregateSize)
+    {
+        this.in = in;
+        this.channel = channel;
+        this.pool = pool;
+        this.fileMetadata = fileMetadata;
+        this.syncPolicy = syncPolicy;
+        this.aggregateSize = aggregateSize;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * 从position开始写入,直到外网数据读取完成
+     *
+     * @param position 写入的起始位置
+     * @param listener 写入完成的回调
+     * @return 写入结束的位置
+     */
+    public long run(long position, Listener listener) throws IOException
+    {
+        readerExecutor.execute(this::read);
+
+        ByteBuffer[] batch = new ByteBuffer[aggregateSize / pool.getBufferSize() + 1];
+
+        try
+        {
+            boolean eof = false;
+
+            while (!eof)
+            {
+                long now = System.nanoTime();
+                ByteBuffer next = take();
+                fileMetadata.incrQueueWaitTime(millis(System.nanoTime() - now));
+
+                if (next == EOF)
+                {
+                    break;
+                }
+
+                int count = 0;
+                long bytes = 0;
+
+                do
+                {
+                    batch[count++] = next;
+                    bytes += next.remaining();
+                }
+                while (bytes < aggregateSize && count < batch.length && (next = queue.poll()) != null && !(eof = next == EOF));
+
+                position = write(batch, count, position, bytes);
+                listener.onWritten(position);
+            }
+
+            if (syncPolicy == SyncPolicy.ON_COMPLETE)
+            {
+                sync();
+            }
+
+            if (error != null)
+            {
+                throw error;
+            }
+
+            return position;
+        }
+        finally
+        {
+            closed = true;
+
+            ByteBuffer buffer;
+            while ((buffer = queue.poll()) != null)
+            {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    private ByteBuffer take() throws IOException
+    {
+        try
+        {
+            return queue.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private long write(ByteBuffer[] batch, int count, long position, long bytes) throws IOException
+    {
+        long now = System.nanoTime();
+
+        try
+        {
+            channel.position(position);
+
+            long written = 0;
+            while (written < bytes)
+            {
+                written += channel.write(batch, 0, count);
+            }
+        }
+        finally
+        {
+            for (int i = 0; i < count; i++)
+            {
+                pool.release(batch[i]);
+                batch[i] = null;
+            }
+        }
+
+        fileMetadata.incrWriteLocalTime(millis(System.nanoTime() - now));
+
+        if (syncPolicy == SyncPolicy.EVERY_WRITE)
+        {
+            sync();
+        }
+
+        return position + bytes;
+    }
+
+    private void sync() throws IOException
+    {
+        long now = System.nanoTime();
+        channel.force(false);
+        fileMetadata.incrSyncTime(millis(System.nanoTime() - now));
+    }
+
+    /**
+     * 读取线程: 每个缓冲区读取到满或外网暂无可读数据为止
+     * 读取出错时已读取到缓冲区的数据仍然写入, 之后结束管道
+     */
+    private void read()
+    {
+        byte[] scratch = new byte[Math.min(pool.getBufferSize(), 1024 * 64)];
+        ByteBuffer buffer = null;
+
+        try
+        {
+            int len = 0;
+
+            while (len != -1 && !closed)
+            {
+                buffer = pool.acquire();
+                long now = System.nanoTime();
+
+                do
+                {
+                    if (buffer.hasArray())
+                    {
+                        len = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        if (len > 0) buffer.position(buffer.position() + len);
+                    }
+                    else
+                    {
+                        len = in.read(scratch, 0, Math.min(scratch.length, buffer.remaining()));
+                        if (len > 0) buffer.put(scratch, 0, len);
+                    }
+                }
+                while (len != -1 && buffer.hasRemaining() && in.available() > 0);
+
+                fileMetadata.incrReadSourceTime(millis(System.nanoTime() - now));
+                flush(buffer);
+                buffer = null;
+            }
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        catch (Throwable e)
+        {
+            logger.error("read source error: {}", e.getMessage(), e);
+            error = new IOException(e);
+        }
+        finally
+        {
+            try
+            {
+                if (buffer != null)
+                {
+                    flush(buffer);
+                }
+
+                offer(EOF);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 有数据的缓冲区放入队列, 没有数据的放回池中
+     */
+    private void flush(ByteBuffer buffer) throws InterruptedException
+    {
+        if (buffer.position() > 0)
+        {
+            buffer.flip();
+            offer(buffer);
+        }
+        else
+        {
+            pool.release(buffer);
+        }
+    }
+
+    private void offer(ByteBuffer buffer) throws InterruptedException
+    {
+        while (!closed)
+        {
+            if (queue.offer(buffer, OFFER_INTERVAL, TimeUnit.MILLISECONDS))
+            {
+                return;
+            }
+        }
+
+        pool.release(buffer);
+    }
+
+    private static long millis(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
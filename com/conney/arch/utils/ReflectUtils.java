@@ -1,9 +1,39 @@
 package com.conney.arch.utils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ReflectUtils
 {
+    /**
+     * 已解析的字段访问器(按Class对象区分, 不同类加载器加载的同名类互不共用; 随类卸载回收, 不持有类加载器)
+     */
+    private static final ClassValue<Map<String, FieldAccessor>> accessors = new ClassValue<Map<String, FieldAccessor>>()
+    {
+        @Override
+        protected Map<String, FieldAccessor> computeValue(Class<?> type)
+        {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    /**
+     * 获取字段访问器, 每个(类, 字段)只解析一次
+     *
+     * @param cls       类(字段可以在父类中声明)
+     * @param fieldName 字段名
+     * @return 字段访问器
+     * @throws IllegalStateException 字段不存在或不能访问
+     */
+    public static FieldAccessor accessor(final Class<?> cls, final String fieldName)
+    {
+        return accessors.get(cls).computeIfAbsent(fieldName, (key) -> FieldAccessor.resolve(cls, fieldName));
+    }
+
     public static Class<?> getGenericParameterType(final Class<?> cls)
     {
         Type type = cls.getGenericSuperclass();
@@ -25,22 +55,11 @@ public class ReflectUtils
 
     public static Object forceGet(final Object obj, final String fieldName)
     {
-        Field field = null;
         try
         {
-            field = getDeclaredField(obj, fieldName);
-            field.setAccessible(true);
-            return field.get(obj);
-        }
-        catch (SecurityException e)
-        {
-            e.printStackTrace();
-        }
-        catch (IllegalArgumentException e)
-        {
-            e.printStackTrace();
+            return accessor(obj.getClass(), fieldName).get(obj);
         }
-        catch (IllegalAccessException e)
+        catch (IllegalStateException e)
         {
             e.printStackTrace();
         }
@@ -49,22 +68,11 @@ public class ReflectUtils
 
     public static void forceSet(final Object obj, final String fieldName, final Object value)
     {
-        Field field = null;
         try
         {
-            field = getDeclaredField(obj, fieldName);
-            field.setAccessible(true);
-            field.set(obj, value);
-        }
-        catch (SecurityException e)
-        {
-            e.printStackTrace();
-        }
-        catch (IllegalArgumentException e)
-        {
-            e.printStackTrace();
+            accessor(obj.getClass(), fieldName).set(obj, value);
         }
-        catch (IllegalAccessException e)
+        catch (IllegalStateException | IllegalArgumentException | ClassCastException e)
         {
             e.printStackTrace();
         }
@@ -189,4 +197,105 @@ public class ReflectUtils
         }
         return null;
     }
+
+    private static Field findField(Class<?> cls, String fieldName)
+    {
+        for (; cls != null && cls != Object.class; cls = cls.getSuperclass())
+        {
+            try
+            {
+                return cls.getDeclaredField(fieldName);
+            }
+            catch (NoSuchFieldException e)
+            {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 字段访问器(缓存的getter/setter MethodHandle, final字段按反射写入)
+     */
+    public static class FieldAccessor
+    {
+        private final Field field;
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        private FieldAccessor(Field field, MethodHandle getter, MethodHandle setter)
+        {
+            this.field = field;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        private static FieldAccessor resolve(Class<?> cls, String fieldName)
+        {
+            Field field = findField(cls, fieldName);
+
+            if (field == null)
+            {
+                throw new IllegalStateException("field not found: " + cls.getName() + "#" + fieldName);
+            }
+
+            try
+            {
+                field.setAccessible(true);
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                MethodHandle getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+                MethodHandle setter = Modifier.isFinal(field.getModifiers()) ? null : lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+                return new FieldAccessor(field, getter, setter);
+            }
+            catch (IllegalAccessException | RuntimeException e)
+            {
+                throw new IllegalStateException("field not accessible: " + cls.getName() + "#" + fieldName, e);
+            }
+        }
+
+        public Object get(Object obj)
+        {
+            try
+            {
+                return getter.invokeExact(obj);
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void set(Object obj, Object value)
+        {
+            try
+            {
+                if (setter != null)
+                {
+                    setter.invokeExact(obj, value);
+                }
+                else
+                {
+                    field.set(obj, value);
+                }
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public Field getField()
+        {
+            return field;
+        }
+    }
 }